@@ -0,0 +1,263 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 
+ * Class CaseFileIndex.
+ * 
+ * Index of the native, pdf and html files of a case. The files are
+ * named [prefix_]uniqueId_fileName[.ext], the index maps every
+ * underscore separated suffix of the name to the file, so the file
+ * of a document is found with a single lookup of uniqueId_fileName.
+ * 
+ * The index is stored in the case directory by store(), changes are only
+ * marked, so lookups don't wait for the index to be written. A directory
+ * changed since
+ * it was indexed is indexed again on the next lookup. The modification
+ * time of a directory may not show every change, so a lookup which
+ * misses checks the file named by the key and adds it, and a found file
+ * which no longer exists is dropped.
+ */
+public class CaseFileIndex {
+    private static final Logger log = Logger.getLogger(CaseFileIndex.class);
+    private static final String INDEX_FILE = ".file-index";
+    
+    private final File caseDir;
+    private final Object storeLock = new Object();
+    private Map<String, DirIndex> dirs = new HashMap<String, DirIndex>();
+    private boolean dirty;
+    
+    public CaseFileIndex(File caseDir) {
+        this.caseDir = caseDir;
+    }
+    
+    /**
+     * 
+     * Find the file of the given sub directory with the given name suffix.
+     * 
+     * @param dirName native, pdf or html.
+     * @param key uniqueId_fileName with the extension of the directory.
+     * @return the file or null if there is none.
+     */
+    public synchronized File find(String dirName, String key) {
+        File dir = new File(caseDir, dirName);
+        
+        DirIndex index = dirs.get(dirName);
+        if (index == null || index.lastModified != dir.lastModified()) {
+            index = build(dir);
+            dirs.put(dirName, index);
+            dirty = true;
+        }
+        
+        String name = index.names.get(key);
+        if (name != null) {
+            File file = new File(dir, name);
+            if (file.exists()) {
+                return file;
+            }
+            
+            removeName(index, name);
+        }
+        
+        File file = new File(dir, key);
+        if (file.isFile()) {
+            addName(index, key);
+        } else {
+            file = null;
+        }
+        
+        if (name != null || file != null) {
+            dirty = true;
+        }
+        
+        return file;
+    }
+    
+    /**
+     * Index the changed directories again, after new files are added.
+     */
+    public synchronized void refresh() {
+        for (Map.Entry<String, DirIndex> entry : dirs.entrySet()) {
+            File dir = new File(caseDir, entry.getKey());
+            if (entry.getValue().lastModified != dir.lastModified()) {
+                entry.setValue(build(dir));
+                dirty = true;
+            }
+        }
+    }
+    
+    private DirIndex build(File dir) {
+        long start = System.currentTimeMillis();
+        
+        DirIndex index = new DirIndex();
+        index.lastModified = dir.lastModified();
+        
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                addName(index, name);
+            }
+        }
+        
+        log.debug("Indexed " + dir.getPath() + ", files: " + (names != null ? names.length : 0)
+                + ", time: " + (System.currentTimeMillis() - start) + "ms");
+        
+        return index;
+    }
+    
+    /**
+     * Map every underscore separated suffix of the name to the file,
+     * the first file wins, as with the directory scan.
+     * 
+     */
+    private void addName(DirIndex index, String name) {
+        int i = -1;
+        do {
+            String key = name.substring(i + 1);
+            if (!index.names.containsKey(key)) {
+                index.names.put(key, name);
+            }
+            i = name.indexOf('_', i + 1);
+        } while (i != -1);
+    }
+    
+    /**
+     * Drop the suffixes of the name which map to it, the reverse of addName().
+     * 
+     */
+    private void removeName(DirIndex index, String name) {
+        int i = -1;
+        do {
+            String key = name.substring(i + 1);
+            if (name.equals(index.names.get(key))) {
+                index.names.remove(key);
+            }
+            i = name.indexOf('_', i + 1);
+        } while (i != -1);
+    }
+    
+    /**
+     * Load the stored index of the case, if there is one.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load() {
+        File file = new File(caseDir, INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                dirs = (Map<String, DirIndex>) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.warn("Problem loading file index: " + file.getAbsolutePath() + ", will be built again");
+            dirs = new HashMap<String, DirIndex>();
+        }
+    }
+    
+    /**
+     * 
+     * Store the index if it changed since it was last stored. Lookups only
+     * wait for the index to be serialized, not for it to be written.
+     * 
+     */
+    public void store() {
+        if (!caseDir.exists()) {
+            return;
+        }
+        
+        File file = new File(caseDir, INDEX_FILE);
+        File tmpFile = new File(caseDir, INDEX_FILE + ".tmp");
+        
+        synchronized (storeLock) {
+            byte[] data;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                
+                try {
+                    data = serialize();
+                } catch (IOException e) {
+                    log.error("Problem storing file index: " + file.getAbsolutePath(), e);
+                    return;
+                }
+                dirty = false;
+            }
+            
+            try {
+                OutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+                
+                if (!tmpFile.renameTo(file)) {
+                    file.delete();
+                    if (!tmpFile.renameTo(file)) {
+                        throw new IOException("Problem replacing file index: " + file.getAbsolutePath());
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Problem storing file index: " + file.getAbsolutePath(), e);
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+    
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(dirs);
+        } finally {
+            out.close();
+        }
+        
+        return bytes.toByteArray();
+    }
+    
+    private static class DirIndex implements Serializable {
+        private static final long serialVersionUID = 4285316209114563811L;
+        
+        private long lastModified;
+        private final Map<String, String> names = new HashMap<String, String>();
+    }
+}
@@ -18,20 +18,31 @@ package org.freeeed.search.files;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.freeeed.search.web.model.solr.SolrDocument;
+import org.freeeed.search.web.solr.SolrDocumentBatchIterator;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Class FileService.
@@ -41,11 +52,114 @@ import java.util.Map;
 public class CaseFileService {
     private static final Logger log = Logger.getLogger(CaseFileService.class);
     private static final String FILES_DIR = "files";
-    private static final String FILES_TMP_DIR = "tmp";
+    static final String FILES_TMP_DIR = "tmp";
     private static final String UPLOAD_DIR = "uploads";
     private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
     private static final String LOAD_FILE = "loadfile";
 
+    private static final int ZIP_ENTRY_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private final Map<String, CaseFileIndex> indexes = new ConcurrentHashMap<String, CaseFileIndex>();
+
+    private boolean parallelCompression = true;
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService compressionExecutor;
+    private long indexStoreIntervalMillis = 60 * 1000;
+    private ScheduledExecutorService indexStoreExecutor;
+
+    /**
+     * Load the file indexes of the existing cases, the changed indexes
+     * are stored periodically and at the end of every export.
+     */
+    public void init() {
+        if (parallelCompression) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            compressionExecutor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "zip-compression-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        log.info("Loading case file indexes...");
+
+        File[] caseDirs = new File(FILES_DIR).listFiles();
+        if (caseDirs != null) {
+            for (File caseDir : caseDirs) {
+                if (caseDir.isDirectory()) {
+                    getIndex(caseDir.getName());
+                }
+            }
+        }
+
+        indexStoreExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "file-index-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        indexStoreExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storeIndexes();
+                } catch (Exception e) {
+                    log.error("Problem storing case file indexes", e);
+                }
+            }
+        }, indexStoreIntervalMillis, indexStoreIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        if (indexStoreExecutor != null) {
+            indexStoreExecutor.shutdownNow();
+        }
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdownNow();
+        }
+
+        storeIndexes();
+    }
+
+    private void storeIndexes() {
+        for (CaseFileIndex index : indexes.values()) {
+            index.store();
+        }
+    }
+
+    private CaseFileIndex getIndex(String caseName) {
+        CaseFileIndex index = indexes.get(caseName);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(caseName);
+                if (index == null) {
+                    index = new CaseFileIndex(new File(FILES_DIR + File.separator + caseName));
+                    index.load();
+                    indexes.put(caseName, index);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * The indexed file of a document, see CaseFileIndex.
+     *
+     */
+    private File findFile(String caseName, String dirName, String documentOriginalPath, String uniqueId,
+                          String ext) {
+        String fileName = documentOriginalPath.contains(File.separator) ?
+                documentOriginalPath.substring(documentOriginalPath.lastIndexOf(File.separator) + 1) : documentOriginalPath;
+
+        return getIndex(caseName).find(dirName, uniqueId + "_" + fileName + ext);
+    }
+
     /**
      * Expanding the files for a given case. They should be in zip
      * format and will be unzipped to the case's directory.
@@ -64,6 +178,9 @@ public class CaseFileService {
             }
 
             ZipUtil.unzipFile(zipFile, location.getAbsolutePath());
+            CaseFileIndex index = getIndex(caseName);
+            index.refresh();
+            index.store();
 
             return true;
         } catch (Exception e) {
@@ -106,43 +223,30 @@ public class CaseFileService {
     }
 
     public File getNativeFile(String caseName, String documentOriginalPath, String uniqueId) {
-        String fileName = documentOriginalPath.contains(File.separator) ?
-                documentOriginalPath.substring(documentOriginalPath.lastIndexOf(File.separator) + 1) : documentOriginalPath;
-
-        fileName = uniqueId + "_" + fileName;
+        return findFile(caseName, "native", documentOriginalPath, uniqueId, "");
+    }
 
-        File dir = new File(FILES_DIR + File.separator + caseName + File.separator + "native");
-        if (dir.exists()) {
-            File[] files = dir.listFiles();
-            for (File file : files) {
-                if (file.getName().endsWith(fileName)) {
-                    return file;
-                }
-            }
+    /**
+     * The native file of a document in the original source directory.
+     * Emails are stored there without the .eml extension.
+     *
+     * @param source
+     * @param documentOriginalPath
+     * @return the file or null if not found.
+     */
+    public File getNativeFileFromSource(String source, String documentOriginalPath) {
+        File f = new File(source + File.separator + documentOriginalPath);
+        if (f.isFile()) {
+            return f;
         }
 
-        return null;
-    }
-
-    public File getNativeFileFromSource(String location, String source, String documentOriginalPath) throws IOException {
-        String fileName = source + File.separator + documentOriginalPath;
-        File f = new File(fileName);
-        if (f.exists()) {
-            File newFile = new File(location + File.separator + documentOriginalPath);
-            FileUtils.copyFile(f, newFile);
-            return newFile;
-        } else {
-            int extIndex = documentOriginalPath.lastIndexOf(".");
-            if (extIndex != -1) {
-                String ext = documentOriginalPath.substring(documentOriginalPath.lastIndexOf(".") + 1);
-                if ("eml".equalsIgnoreCase(ext)) {
-                    fileName = source + File.separator + documentOriginalPath.substring(0, extIndex);
-                    f = new File(fileName);
-                    if (f.exists()) {
-                        File newFile = new File(location + File.separator + documentOriginalPath);
-                        FileUtils.copyFile(f, newFile);
-                        return newFile;
-                    }
+        int extIndex = documentOriginalPath.lastIndexOf(".");
+        if (extIndex != -1) {
+            String ext = documentOriginalPath.substring(extIndex + 1);
+            if ("eml".equalsIgnoreCase(ext)) {
+                f = new File(source + File.separator + documentOriginalPath.substring(0, extIndex));
+                if (f.isFile()) {
+                    return f;
                 }
             }
         }
@@ -151,22 +255,7 @@ public class CaseFileService {
     }
 
     public File getHtmlFile(String caseName, String documentOriginalPath, String uniqueId) {
-        String fileName = documentOriginalPath.contains(File.separator) ?
-                documentOriginalPath.substring(documentOriginalPath.lastIndexOf(File.separator) + 1) : documentOriginalPath;
-
-        fileName = uniqueId + "_" + fileName;
-
-        File dir = new File(FILES_DIR + File.separator + caseName + File.separator + "html");
-        if (dir.exists()) {
-            File[] files = dir.listFiles();
-            for (File file : files) {
-                if (file.getName().endsWith(fileName + ".html")) {
-                    return file;
-                }
-            }
-        }
-
-        return null;
+        return findFile(caseName, "html", documentOriginalPath, uniqueId, ".html");
     }
 
     public File getHtmlImageFile(String caseName, String documentOriginalPath) {
@@ -174,118 +263,186 @@ public class CaseFileService {
     }
 
     public File getImageFile(String caseName, String documentOriginalPath, String uniqueId) {
-        String fileName = documentOriginalPath.contains(File.separator) ?
-                documentOriginalPath.substring(documentOriginalPath.lastIndexOf(File.separator) + 1) : documentOriginalPath;
-
-        fileName = uniqueId + "_" + fileName;
+        return findFile(caseName, "pdf", documentOriginalPath, uniqueId, ".pdf");
+    }
 
-        File dir = new File(FILES_DIR + File.separator + caseName + File.separator + "pdf");
-        if (dir.exists()) {
-            File[] files = dir.listFiles();
-            for (File file : files) {
-                if (file.getName().endsWith(fileName + ".pdf")) {
-                    return file;
-                }
+    /**
+     * Write the zip of the given export job to the stream, each file is
+     * added as soon as it is found and the progress is reported to the job.
+     * If reading the documents fails the zip is left unfinished, so an
+     * incomplete export is not taken for a complete one. A cancelled job
+     * stops after the current batch, also leaving the zip unfinished.
+     * The stream is not closed. The file index of the case is stored at
+     * the end, with the files found missing or added during the export.
+     *
+     * @param job
+     * @param batches
+     * @param out
+     * @throws IOException
+     */
+    public void writeExport(ExportJob job, SolrDocumentBatchIterator batches, OutputStream out)
+            throws IOException {
+        try {
+            writeZip(job, batches, out);
+        } finally {
+            CaseFileIndex index = indexes.get(job.getCaseName());
+            if (index != null) {
+                index.store();
             }
         }
-
-        return null;
     }
 
-    public File getImageFiles(String caseName, List<SolrDocument> docs) {
-        List<File> imageFiles = new ArrayList<File>();
-        for (SolrDocument doc : docs) {
-            File file = getImageFile(caseName, doc.getDocumentPath(), doc.getUniqueId());
-            if (file != null) {
-                imageFiles.add(file);
+    private void writeZip(ExportJob job, SolrDocumentBatchIterator batches, OutputStream out)
+            throws IOException {
+        if (compressionExecutor != null) {
+            ParallelZipWriter writer = newZipWriter(out);
+            try {
+                addDocuments(writer, job, batches, new HashSet<String>());
+                if (checkExport(job, batches)) {
+                    writer.finish();
+                }
+            } finally {
+                writer.abort();
             }
+            return;
         }
 
-        File tmpDir = new File(FILES_TMP_DIR);
-        tmpDir.mkdirs();
+        ZipOutputStream zout = new ZipOutputStream(out);
+        addDocuments(zout, job, batches, new HashSet<String>());
+        if (checkExport(job, batches)) {
+            zout.finish();
+            zout.flush();
+        }
+    }
 
-        String zipFileName = FILES_TMP_DIR + File.separator + "imgtmp" + System.currentTimeMillis() + ".zip";
-        try {
-            ZipUtil.createZipFile(zipFileName, imageFiles);
-        } catch (IOException e) {
-            log.error("Problem creating zip file", e);
-            return null;
+    private boolean checkExport(ExportJob job, SolrDocumentBatchIterator batches) throws IOException {
+        if (batches.hasError()) {
+            throw new IOException("Problem reading the documents from Solr, export is incomplete");
         }
 
-        return new File(zipFileName);
+        return !job.isCancelled();
+    }
+
+    /**
+     * The entries are compressed on the compression pool, a few per thread
+     * are kept in progress so the threads don't wait for the output.
+     *
+     */
+    private ParallelZipWriter newZipWriter(OutputStream out) {
+        return new ParallelZipWriter(out, compressionExecutor, compressionThreads * 2,
+                ZIP_ENTRY_MEMORY_LIMIT, new File(FILES_TMP_DIR));
     }
 
-    public File getNativeFiles(String caseName, List<SolrDocument> docs) {
-        List<File> imageFiles = new ArrayList<File>();
-        for (SolrDocument doc : docs) {
-            File file = getNativeFile(caseName, doc.getDocumentPath(), doc.getUniqueId());
-            if (file != null) {
-                imageFiles.add(file);
+    private void addDocuments(ZipOutputStream zout, ExportJob job, SolrDocumentBatchIterator batches,
+            Set<String> names) throws IOException {
+        while (!job.isCancelled() && batches.hasNext()) {
+            List<SolrDocument> batch = batches.next();
+            for (SolrDocument doc : batch) {
+                File file = getExportFile(job, doc);
+                if (file != null) {
+                    ZipUtil.addFile(zout, file, getEntryName(job, doc, file, names));
+                }
             }
+            job.setTotal(batches.getTotalSize());
+            job.addProcessed(batch.size());
         }
+    }
 
-        File tmpDir = new File(FILES_TMP_DIR);
-        tmpDir.mkdirs();
-
-        String zipFileName = FILES_TMP_DIR + File.separator + "nattmp" + System.currentTimeMillis() + ".zip";
-        try {
-            ZipUtil.createZipFile(zipFileName, imageFiles);
-        } catch (IOException e) {
-            log.error("Problem creating zip file", e);
-            return null;
+    private void addDocuments(ParallelZipWriter writer, ExportJob job, SolrDocumentBatchIterator batches,
+            Set<String> names) throws IOException {
+        while (!job.isCancelled() && batches.hasNext()) {
+            List<SolrDocument> batch = batches.next();
+            for (SolrDocument doc : batch) {
+                File file = getExportFile(job, doc);
+                if (file != null) {
+                    writer.addFile(file, getEntryName(job, doc, file, names));
+                }
+            }
+            job.setTotal(batches.getTotalSize());
+            job.addProcessed(batch.size());
         }
-
-        return new File(zipFileName);
     }
 
-    public File getNativeFilesFromSource(String source, List<SolrDocument> docs) throws IOException {
-        File tmpDir = new File(FILES_TMP_DIR);
-        tmpDir.mkdirs();
+    private File getExportFile(ExportJob job, SolrDocument doc) {
+        switch (job.getType()) {
+            case IMAGE:
+                return getImageFile(job.getCaseName(), doc.getDocumentPath(), doc.getUniqueId());
+            case NATIVE_FROM_SOURCE:
+                return getNativeFileFromSource(job.getSource(), doc.getDocumentPath());
+            default:
+                return getNativeFile(job.getCaseName(), doc.getDocumentPath(), doc.getUniqueId());
+        }
+    }
 
-        long ts = System.currentTimeMillis();
-        String zipFileName = FILES_TMP_DIR + File.separator + "nattmp" + ts + ".zip";
-        String zipFileDirName = FILES_TMP_DIR + File.separator + "nattmp" + ts;
-        File zipFileDir = new File(zipFileDirName);
+    /**
+     * Files from the source keep their path within the source. The names
+     * already used in the zip are given, documents sharing a path or a
+     * file get a numbered name.
+     *
+     */
+    private String getEntryName(ExportJob job, SolrDocument doc, File file, Set<String> names) {
+        if (job.getType() == ExportJob.Type.NATIVE_FROM_SOURCE) {
+            return uniqueEntryName(doc.getDocumentPath().replace(File.separatorChar, '/'), names);
+        }
 
-        zipFileDir.mkdirs();
+        return uniqueEntryName(file.getName(), names);
+    }
 
-        for (SolrDocument doc : docs) {
-            getNativeFileFromSource(zipFileDirName, source, doc.getDocumentPath());
+    /**
+     * The given name, or the first of name_2.ext, name_3.ext... not used
+     * yet. The name returned is added to the used names.
+     *
+     * @param name
+     * @param names the names used so far.
+     * @return the unique name.
+     */
+    static String uniqueEntryName(String name, Set<String> names) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf('/') + 1) {
+            dot = name.length();
         }
 
-        try {
-            ZipUtil.createZipFile(zipFileName, zipFileDirName);
-        } catch (IOException e) {
-            log.error("Problem creating zip file", e);
-            return null;
+        String unique = name;
+        for (int i = 2; !names.add(unique); i++) {
+            unique = name.substring(0, dot) + "_" + i + name.substring(dot);
         }
-        return new File(zipFileName);
+
+        return unique;
     }
 
-    public File getTaggedLoadFile(String caseName, Map<String, String> hashDocWithAllTags) {
+    /**
+     * @param caseName
+     * @return the load file uploaded for the case, null if there is none.
+     */
+    public File getLoadFile(String caseName) {
         File dir = new File(FILES_DIR + File.separator + caseName + File.separator + LOAD_FILE);
-        File loadFile = null;
-        if (dir.exists()) {
-            File[] files = dir.listFiles();
+        File[] files = dir.listFiles();
+        if (files != null) {
             for (File file : files) {
                 if (!file.getName().equalsIgnoreCase(".DS_Store")) {
-                    loadFile = file;
-                    break;
+                    return file;
                 }
             }
         }
-        if (loadFile == null) {
-            return null;
-        }
-        String destination = File.separator + FILES_TMP_DIR + File.separator + LOAD_FILE;
-        File result = new File(destination);
-        if (!result.exists()) {
-            result.mkdirs();
-        }
-        destination += File.separator + new Date().getTime() + ".csv";
+
+        return null;
+    }
+
+    /**
+     * Write the lines of the load file of the documents with the given
+     * hashes to the stream, with their tags appended. The lines are
+     * written as they are read, the stream is flushed but not closed.
+     *
+     * @param loadFile
+     * @param hashDocWithAllTags the tags of the documents by hash.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTaggedLoadFile(File loadFile, Map<String, String> hashDocWithAllTags, OutputStream out)
+            throws IOException {
+        CSVReader csvReader = new CSVReader(new FileReader(loadFile), '|');
         try {
-            CSVReader csvReader = new CSVReader(new FileReader(loadFile), '|');
-            CSVWriter csvWriter = new CSVWriter(new FileWriter(destination), '|');
+            CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new OutputStreamWriter(out)), '|');
             String[] nextLine;
             int hashIndex = getHashIndex(csvReader, csvWriter);
             if (hashIndex != -1) {
@@ -303,12 +460,10 @@ public class CaseFileService {
                     }
                 }
             }
+            csvWriter.flush();
+        } finally {
             csvReader.close();
-            csvWriter.close();
-        } catch (Exception ex) {
-            log.error("error reading csv", ex);
         }
-        return new File(destination);
     }
 
     private String[] prepareNewHeader(String[] nextLine) {
@@ -349,4 +504,16 @@ public class CaseFileService {
         csvWriter.writeNext(newHeader);
         return index;
     }
+
+    public void setParallelCompression(boolean parallelCompression) {
+        this.parallelCompression = parallelCompression;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public void setIndexStoreIntervalMillis(long indexStoreIntervalMillis) {
+        this.indexStoreIntervalMillis = indexStoreIntervalMillis;
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freeeed.search.web.solr.SearchQuery;
+
+/**
+ * 
+ * Class ExportJob.
+ * 
+ * A zip export of the documents of a search, built in the background.
+ * The job keeps everything it needs from the session, the finished zip
+ * is kept until the job expires.
+ */
+public class ExportJob {
+    public enum Type {
+        NATIVE,
+        IMAGE,
+        NATIVE_FROM_SOURCE
+    }
+    
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        SUCCESS,
+        ERROR,
+        CANCELLED,
+        EXPIRED
+    }
+    
+    private final String id = UUID.randomUUID().toString();
+    private final Type type;
+    private final String solrCore;
+    private final String caseName;
+    private final SearchQuery query;
+    private final String source;
+    
+    private volatile Status status = Status.QUEUED;
+    private volatile boolean cancelled;
+    private volatile int total = -1;
+    private final AtomicInteger processed = new AtomicInteger();
+    private volatile long started;
+    private volatile long finished;
+    private volatile File file;
+    
+    public ExportJob(Type type, String solrCore, String caseName, SearchQuery query, String source) {
+        this.type = type;
+        this.solrCore = solrCore;
+        this.caseName = caseName;
+        this.query = query;
+        this.source = source;
+    }
+    
+    void start() {
+        started = System.currentTimeMillis();
+        status = Status.RUNNING;
+    }
+    
+    void finish(Status status, File file) {
+        this.file = file;
+        finished = System.currentTimeMillis();
+        this.status = status;
+    }
+    
+    /**
+     * The zip was removed, the job can't be downloaded anymore.
+     */
+    void expire() {
+        file = null;
+        status = Status.EXPIRED;
+    }
+    
+    /**
+     * Ask the job to stop, it stops after the batch in progress.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    public boolean isDone() {
+        return finished > 0;
+    }
+    
+    void setTotal(int total) {
+        this.total = total;
+    }
+    
+    void addProcessed(int count) {
+        processed.addAndGet(count);
+    }
+    
+    /**
+     * @return the processed documents per second, 0 before the job starts.
+     */
+    public double getRate() {
+        if (started == 0) {
+            return 0;
+        }
+        
+        long end = finished > 0 ? finished : System.currentTimeMillis();
+        long elapsed = Math.max(end - started, 1);
+        return processed.get() * 1000.0 / elapsed;
+    }
+    
+    /**
+     * @return the estimated seconds until the job completes, -1 if unknown.
+     */
+    public long getEta() {
+        if (isDone()) {
+            return 0;
+        }
+        
+        double rate = getRate();
+        if (total < 0 || rate <= 0) {
+            return -1;
+        }
+        
+        return Math.round(Math.max(total - processed.get(), 0) / rate);
+    }
+    
+    /**
+     * @return the name the zip is downloaded with.
+     */
+    public String getFileName() {
+        return (type == Type.IMAGE ? "images-" : "natives-") + (finished > 0 ? finished : started) + ".zip";
+    }
+    
+    public long getFinished() {
+        return finished;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSolrCore() {
+        return solrCore;
+    }
+
+    public String getCaseName() {
+        return caseName;
+    }
+
+    public SearchQuery getQuery() {
+        return query;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return the finished zip, null until the job succeeds.
+     */
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.model.Case;
+import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.FieldProfile;
+import org.freeeed.search.web.solr.SolrDocumentBatchIterator;
+import org.freeeed.search.web.solr.SolrSearchService;
+
+/**
+ * 
+ * Class ExportJobService.
+ * 
+ * Builds the zip exports in the background on a bounded pool, so they
+ * don't block the HTTP request. The jobs can be polled for their progress,
+ * cancelled, and downloaded when finished.
+ * 
+ * The finished zips are kept in the export directory until they expire,
+ * or until they are the oldest ones over the disk quota. The quota counts
+ * the exports being written and their spilled entries too, a job is not
+ * accepted while the quota is exceeded and fails if it exceeds it while
+ * writing. The cleanup runs periodically, leftovers of earlier runs are
+ * removed on startup.
+ * 
+ * Clients which wait for the download, instead of polling a job, can have
+ * the zip streamed straight to them, see stream(). Nothing is written to
+ * disk and the first files are sent right away, but the request is held
+ * for the whole export and a failure leaves an unfinished zip.
+ */
+public class ExportJobService {
+    private static final Logger log = Logger.getLogger(ExportJobService.class);
+    private static final int EXPORT_BATCH_SIZE = 1000;
+    private static final String PART_SUFFIX = ".part";
+    private static final long QUOTA_CHECK_BYTES = 64 * 1024 * 1024;
+    
+    private CaseFileService caseFileService;
+    private SolrSearchService searchService;
+    
+    private String exportDir = "tmp" + File.separator + "exports";
+    private int maxThreads = 2;
+    private int queueSize = 16;
+    private long ttlMillis = 60 * 60 * 1000;
+    private long maxDiskBytes = 10L * 1024 * 1024 * 1024;
+    private long cleanupIntervalMillis = 5 * 60 * 1000;
+    private int maxStreams = 2;
+    
+    private ThreadPoolExecutor executor;
+    private Semaphore streamPermits;
+    private ScheduledExecutorService cleanupExecutor;
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<String, ExportJob>();
+    private final Map<String, Runnable> queued = new ConcurrentHashMap<String, Runnable>();
+    
+    public void init() {
+        log.info("Init export job service...");
+        
+        removeLeftovers();
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "export-job-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        streamPermits = new Semaphore(maxStreams);
+        
+        cleanupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "export-cleanup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cleanupExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cleanup();
+                } catch (Exception e) {
+                    log.error("Problem cleaning up exports", e);
+                }
+            }
+        }, cleanupIntervalMillis, cleanupIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * The jobs are not kept over a restart, so their zips can't be
+     * downloaded anymore. The temporary exports of the earlier versions,
+     * built in the request, and zip entries spilled to disk are removed
+     * as well.
+     */
+    private void removeLeftovers() {
+        File dir = new File(exportDir);
+        delete(dir);
+        dir.mkdirs();
+        
+        File[] tmpFiles = new File(CaseFileService.FILES_TMP_DIR).listFiles();
+        if (tmpFiles != null) {
+            for (File file : tmpFiles) {
+                String name = file.getName();
+                if (name.startsWith("nattmp") || name.startsWith("imgtmp") || name.startsWith("zipentry")) {
+                    delete(file);
+                }
+            }
+        }
+    }
+    
+    public void destroy() {
+        log.info("Shutting down export job service...");
+        
+        for (ExportJob job : jobs.values()) {
+            job.cancel();
+        }
+        
+        if (cleanupExecutor != null) {
+            cleanupExecutor.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * 
+     * Export the files of all documents of the current search of the session.
+     * 
+     * @param solrSession
+     * @param type
+     * @param source the source directory of the native files, for NATIVE_FROM_SOURCE only.
+     * @return the job or null if it can't be started.
+     */
+    public ExportJob submit(SolrSessionObject solrSession, ExportJob.Type type, String source) {
+        Case c = solrSession.getSelectedCase();
+        if (c == null || c.getSolrSourceCore() == null) {
+            return null;
+        }
+        
+        if (!enforceQuota()) {
+            log.warn("Export disk quota exceeded, rejecting export of case: " + c.getName());
+            return null;
+        }
+        
+        final ExportJob job = new ExportJob(type, c.getSolrSourceCore(), c.getName(),
+                solrSession.buildSearchQuery(), source);
+        jobs.put(job.getId(), job);
+        
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                execute(job);
+            }
+        };
+        queued.put(job.getId(), task);
+        
+        try {
+            executor.execute(task);
+            log.debug("Export job submitted: " + job.getId() + ", type: " + type);
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many export jobs, rejecting export of case: " + c.getName());
+            queued.remove(job.getId());
+            jobs.remove(job.getId());
+            return null;
+        }
+        
+        return job;
+    }
+    
+    /**
+     * 
+     * Export the files of all documents of the current search of the session
+     * straight to the output, in the calling thread. Streams are limited to
+     * maxStreams at a time, apart from the background jobs.
+     * 
+     * The output is opened only once the documents can be read from Solr.
+     * A failure after that is logged, the output is left with an unfinished
+     * zip, so it is not taken for a complete one.
+     * 
+     * @param solrSession
+     * @param type
+     * @param source the source directory of the native files, for NATIVE_FROM_SOURCE only.
+     * @param output
+     * @return false if the export can't be started, nothing is written then.
+     * @throws IOException if the output can't be opened.
+     */
+    public boolean stream(SolrSessionObject solrSession, ExportJob.Type type, String source, Output output)
+            throws IOException {
+        Case c = solrSession.getSelectedCase();
+        if (c == null || c.getSolrSourceCore() == null) {
+            return false;
+        }
+        
+        if (!streamPermits.tryAcquire()) {
+            log.warn("Too many streamed exports, rejecting export of case: " + c.getName());
+            return false;
+        }
+        
+        try {
+            ExportJob job = new ExportJob(type, c.getSolrSourceCore(), c.getName(),
+                    solrSession.buildSearchQuery(), source);
+            job.start();
+            
+            SolrDocumentBatchIterator batches = searchService.iterate(job.getSolrCore(), job.getQuery(),
+                    FieldProfile.EXPORT, EXPORT_BATCH_SIZE);
+            try {
+                //fail before anything is sent if Solr can't be read at all
+                batches.hasNext();
+                if (batches.hasError()) {
+                    return false;
+                }
+                
+                OutputStream out = output.open(job);
+                try {
+                    caseFileService.writeExport(job, batches, out);
+                    out.close();
+                } catch (IOException e) {
+                    log.error("Problem streaming export of case: " + c.getName(), e);
+                }
+                
+                log.debug("Streamed export finished, documents: " + job.getProcessed());
+                return true;
+            } finally {
+                batches.close();
+            }
+        } finally {
+            streamPermits.release();
+        }
+    }
+    
+    private void execute(ExportJob job) {
+        queued.remove(job.getId());
+        if (job.isCancelled()) {
+            job.finish(ExportJob.Status.CANCELLED, null);
+            return;
+        }
+        
+        job.start();
+        
+        //written to a part file first, so only complete zips are served
+        File part = new File(exportDir, job.getId() + ".zip" + PART_SUFFIX);
+        File zip = new File(exportDir, job.getId() + ".zip");
+        
+        ExportJob.Status status = ExportJob.Status.ERROR;
+        SolrDocumentBatchIterator batches = searchService.iterate(job.getSolrCore(), job.getQuery(),
+                FieldProfile.EXPORT, EXPORT_BATCH_SIZE);
+        try {
+            part.getParentFile().mkdirs();
+            OutputStream out = new QuotaOutputStream(new FileOutputStream(part));
+            try {
+                caseFileService.writeExport(job, batches, out);
+            } finally {
+                out.close();
+            }
+            
+            if (job.isCancelled()) {
+                status = ExportJob.Status.CANCELLED;
+            } else if (part.renameTo(zip)) {
+                status = ExportJob.Status.SUCCESS;
+            } else {
+                log.error("Problem renaming export: " + part);
+            }
+        } catch (Exception e) {
+            log.error("Problem running export job: " + job.getId(), e);
+        } finally {
+            batches.close();
+            part.delete();
+            
+            job.finish(status, status == ExportJob.Status.SUCCESS ? zip : null);
+        }
+        
+        log.debug("Export job " + job.getId() + " finished: " + status + ", documents: " + job.getProcessed());
+        
+        if (status == ExportJob.Status.SUCCESS) {
+            enforceQuota();
+        }
+    }
+    
+    /**
+     * Forget the expired jobs and remove their zips, then keep the
+     * remaining zips within the disk quota.
+     */
+    synchronized void cleanup() {
+        long now = System.currentTimeMillis();
+        
+        Iterator<ExportJob> i = jobs.values().iterator();
+        while (i.hasNext()) {
+            ExportJob job = i.next();
+            if (job.isDone() && now - job.getFinished() > ttlMillis) {
+                removeFile(job);
+                i.remove();
+            }
+        }
+        
+        enforceQuota();
+        removeOrphans();
+    }
+    
+    /**
+     * Remove the oldest zips until the exports fit in the quota. The jobs
+     * are kept as expired, so a poll tells why the zip is gone.
+     * 
+     * @return false if the exports in progress alone exceed the quota.
+     */
+    private synchronized boolean enforceQuota() {
+        long used = getUsedBytes();
+        if (used <= maxDiskBytes) {
+            return true;
+        }
+        
+        List<ExportJob> finished = new ArrayList<ExportJob>();
+        for (ExportJob job : jobs.values()) {
+            if (job.getFile() != null) {
+                finished.add(job);
+            }
+        }
+        
+        Collections.sort(finished, new Comparator<ExportJob>() {
+            @Override
+            public int compare(ExportJob j1, ExportJob j2) {
+                return j1.getFinished() < j2.getFinished() ? -1 : (j1.getFinished() > j2.getFinished() ? 1 : 0);
+            }
+        });
+        
+        for (ExportJob job : finished) {
+            if (used <= maxDiskBytes) {
+                break;
+            }
+            
+            used -= job.getFile().length();
+            log.info("Export quota exceeded, removing export: " + job.getId());
+            removeFile(job);
+        }
+        
+        return used <= maxDiskBytes;
+    }
+    
+    /**
+     * The disk used by the finished zips, the zips being written and
+     * their entries spilled to disk.
+     */
+    private long getUsedBytes() {
+        long used = 0;
+        
+        File[] files = new File(exportDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        
+        File[] tmpFiles = new File(CaseFileService.FILES_TMP_DIR).listFiles();
+        if (tmpFiles != null) {
+            for (File file : tmpFiles) {
+                if (file.getName().startsWith("zipentry")) {
+                    used += file.length();
+                }
+            }
+        }
+        
+        return used;
+    }
+    
+    /**
+     * Zips no job refers to, left by a failure to delete them.
+     */
+    private void removeOrphans() {
+        File[] files = new File(exportDir).listFiles();
+        if (files == null) {
+            return;
+        }
+        
+        Set<String> known = new HashSet<String>();
+        for (ExportJob job : jobs.values()) {
+            known.add(job.getId() + ".zip");
+            known.add(job.getId() + ".zip" + PART_SUFFIX);
+        }
+        
+        for (File file : files) {
+            if (!known.contains(file.getName())) {
+                delete(file);
+            }
+        }
+    }
+    
+    private void delete(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        
+        try {
+            FileUtils.forceDelete(file);
+        } catch (IOException e) {
+            log.warn("Problem removing: " + file, e);
+        }
+    }
+    
+    private void removeFile(ExportJob job) {
+        File file = job.getFile();
+        job.expire();
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Problem removing export: " + file);
+        }
+    }
+    
+    /**
+     * 
+     * The job with the given id, only if it belongs to the case
+     * selected in the session.
+     * 
+     * @param solrSession
+     * @param jobId
+     * @return the job or null if not found.
+     */
+    public ExportJob getJob(SolrSessionObject solrSession, String jobId) {
+        ExportJob job = jobId != null ? jobs.get(jobId) : null;
+        Case c = solrSession.getSelectedCase();
+        if (job == null || c == null || !job.getSolrCore().equals(c.getSolrSourceCore())) {
+            return null;
+        }
+        
+        return job;
+    }
+    
+    /**
+     * 
+     * Cancel the given job, see getJob(). A job still waiting in the
+     * queue is removed from it and is cancelled right away, a running
+     * one stops after the batch in progress.
+     * 
+     * @param solrSession
+     * @param jobId
+     * @return the job or null if not found.
+     */
+    public ExportJob cancel(SolrSessionObject solrSession, String jobId) {
+        ExportJob job = getJob(solrSession, jobId);
+        if (job == null) {
+            return null;
+        }
+        
+        job.cancel();
+        
+        //only one of cancel() and execute() takes the task from the queued ones
+        Runnable task = queued.remove(job.getId());
+        if (task != null && executor.remove(task)) {
+            job.finish(ExportJob.Status.CANCELLED, null);
+            log.debug("Export job cancelled before it started: " + job.getId());
+        }
+        
+        return job;
+    }
+
+    /**
+     * The destination of a streamed export, see stream().
+     */
+    public interface Output {
+        
+        /**
+         * @param job the export, not registered as a background job.
+         * @return the stream the zip is written to.
+         * @throws IOException
+         */
+        OutputStream open(ExportJob job) throws IOException;
+    }
+    
+    /**
+     * Checks the quota every QUOTA_CHECK_BYTES written, so an export
+     * which doesn't fit fails before it fills the disk.
+     */
+    private class QuotaOutputStream extends FilterOutputStream {
+        private long unchecked;
+        
+        QuotaOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+        
+        private void written(int length) throws IOException {
+            unchecked += length;
+            if (unchecked >= QUOTA_CHECK_BYTES) {
+                unchecked = 0;
+                if (!enforceQuota()) {
+                    throw new IOException("Export disk quota exceeded");
+                }
+            }
+        }
+    }
+
+    public void setCaseFileService(CaseFileService caseFileService) {
+        this.caseFileService = caseFileService;
+    }
+
+    public void setSearchService(SolrSearchService searchService) {
+        this.searchService = searchService;
+    }
+
+    public void setExportDir(String exportDir) {
+        this.exportDir = exportDir;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setMaxStreams(int maxStreams) {
+        this.maxStreams = maxStreams;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    public void setCleanupIntervalMillis(long cleanupIntervalMillis) {
+        this.cleanupIntervalMillis = cleanupIntervalMillis;
+    }
+}
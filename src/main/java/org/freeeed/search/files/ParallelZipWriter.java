@@ -0,0 +1,542 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 
+ * Class ParallelZipWriter.
+ * 
+ * Writes a zip with the entries compressed concurrently on the given pool.
+ * Each entry is deflated into its own buffer, spilled to a temporary file
+ * when large, and the entries are written to the output in the order they
+ * were added as soon as they are ready. Only a bounded number of entries
+ * is in progress at a time.
+ * 
+ * Already compressed formats, and files which don't get smaller, are
+ * stored. Zip64 records are written when the entries, sizes or offsets
+ * don't fit the original format.
+ */
+public class ParallelZipWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final long ABORT_POLL_MILLIS = 1000;
+    
+    private final CountingOutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final int memoryLimit;
+    private final File tmpDir;
+    
+    private final LinkedList<Future<Segment>> pending = new LinkedList<Future<Segment>>();
+    private final List<Segment> written = new ArrayList<Segment>();
+    private boolean finished;
+    private volatile boolean aborted;
+    
+    /**
+     * @param out the stream to write the zip to, it is not closed.
+     * @param executor the pool compressing the entries.
+     * @param maxPending the most entries in progress at a time.
+     * @param memoryLimit the most bytes of an entry buffered in memory.
+     * @param tmpDir where larger entries are buffered.
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int maxPending, int memoryLimit,
+            File tmpDir) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.memoryLimit = memoryLimit;
+        this.tmpDir = tmpDir;
+    }
+    
+    /**
+     * 
+     * Add the given file. Entries which are ready are written, when too
+     * many are in progress this waits for the oldest one.
+     * 
+     * @param file
+     * @param entryName
+     * @throws IOException
+     */
+    public void addFile(final File file, final String entryName) throws IOException {
+        pending.add(executor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws Exception {
+                return compress(file, entryName);
+            }
+        }));
+        
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.getFirst().isDone())) {
+            writeSegment(awaitFirst());
+        }
+    }
+    
+    /**
+     * 
+     * Write the remaining entries and the central directory.
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeSegment(awaitFirst());
+        }
+        
+        writeCentralDirectory();
+        out.flush();
+        finished = true;
+    }
+    
+    /**
+     * Drop the entries in progress and their buffers. The zip is left
+     * unfinished. The entries being compressed stop early and are waited
+     * for, so none of their buffers are left behind.
+     */
+    public void abort() {
+        aborted = true;
+        
+        boolean interrupted = false;
+        while (!pending.isEmpty()) {
+            Future<Segment> future = pending.getFirst();
+            try {
+                Segment segment = future.get(ABORT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (segment != null) {
+                    segment.release();
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                continue;
+            } catch (TimeoutException e) {
+                //an entry which never started after the pool was shut down has nothing to release
+                if (!executor.isTerminated()) {
+                    continue;
+                }
+                future.cancel(false);
+            } catch (ExecutionException e) {
+                //the failed entry released its buffer
+            }
+            
+            pending.removeFirst();
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public boolean isFinished() {
+        return finished;
+    }
+    
+    /**
+     * Wait for the oldest entry in progress. It stays pending until it is
+     * ready, so an abort releases it too.
+     * 
+     */
+    private Segment awaitFirst() throws IOException {
+        try {
+            Segment segment = pending.getFirst().get();
+            pending.removeFirst();
+            return segment;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted compressing zip entries");
+        } catch (ExecutionException e) {
+            pending.removeFirst();
+            abort();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            IOException ioe = new IOException("Problem compressing zip entry");
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+    
+    private Segment compress(File file, String entryName) throws IOException {
+        if (aborted) {
+            return null;
+        }
+        
+        Segment segment = new Segment(file, entryName);
+        
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        
+        if (ZipUtil.isCompressed(file.getName())) {
+            segment.size = checksum(file, crc, buffer);
+            segment.crc = crc.getValue();
+            segment.stored();
+            return segment;
+        }
+        
+        SpillOutputStream data = new SpillOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        InputStream in = new FileInputStream(file);
+        try {
+            DeflaterOutputStream dout = new DeflaterOutputStream(data, deflater, BUFFER_SIZE);
+            long size = 0;
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                if (aborted) {
+                    throw new IOException("Zip aborted");
+                }
+                
+                crc.update(buffer, 0, length);
+                dout.write(buffer, 0, length);
+                size += length;
+            }
+            dout.finish();
+            data.close();
+            
+            segment.size = size;
+            segment.crc = crc.getValue();
+            segment.method = DEFLATED;
+            segment.compressedSize = data.size;
+            segment.data = data;
+        } catch (IOException e) {
+            data.release();
+            throw e;
+        } finally {
+            in.close();
+            deflater.end();
+        }
+        
+        if (segment.compressedSize >= segment.size) {
+            data.release();
+            segment.stored();
+        }
+        
+        return segment;
+    }
+    
+    private long checksum(File file, CRC32 crc, byte[] buffer) throws IOException {
+        long size = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, length);
+                size += length;
+            }
+        } finally {
+            in.close();
+        }
+        
+        return size;
+    }
+    
+    private void writeSegment(Segment segment) throws IOException {
+        try {
+            segment.offset = out.count;
+            
+            boolean zip64 = segment.size >= ZIP64_LIMIT || segment.compressedSize >= ZIP64_LIMIT;
+            
+            writeInt(0x04034b50);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(FLAG_UTF8);
+            writeShort(segment.method);
+            writeInt(segment.dosTime);
+            writeInt((int) segment.crc);
+            writeInt(zip64 ? ZIP64_LIMIT : segment.compressedSize);
+            writeInt(zip64 ? ZIP64_LIMIT : segment.size);
+            writeShort(segment.name.length);
+            writeShort(zip64 ? 20 : 0);
+            out.write(segment.name);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(16);
+                writeLong(segment.size);
+                writeLong(segment.compressedSize);
+            }
+            
+            InputStream in = segment.data != null ? segment.data.getInputStream() : new FileInputStream(segment.file);
+            try {
+                copy(in, segment.compressedSize);
+            } finally {
+                in.close();
+            }
+        } finally {
+            segment.release();
+        }
+        
+        written.add(segment);
+    }
+    
+    private void copy(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Zip entry changed while being written");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+    
+    private void writeCentralDirectory() throws IOException {
+        long start = out.count;
+        
+        for (Segment segment : written) {
+            boolean sizes64 = segment.size >= ZIP64_LIMIT || segment.compressedSize >= ZIP64_LIMIT;
+            boolean offset64 = segment.offset >= ZIP64_LIMIT;
+            int extraLength = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+            
+            writeInt(0x02014b50);
+            writeShort(VERSION_ZIP64);
+            writeShort(extraLength > 0 ? VERSION_ZIP64 : VERSION);
+            writeShort(FLAG_UTF8);
+            writeShort(segment.method);
+            writeInt(segment.dosTime);
+            writeInt((int) segment.crc);
+            writeInt(sizes64 ? ZIP64_LIMIT : segment.compressedSize);
+            writeInt(sizes64 ? ZIP64_LIMIT : segment.size);
+            writeShort(segment.name.length);
+            writeShort(extraLength > 0 ? extraLength + 4 : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(offset64 ? ZIP64_LIMIT : segment.offset);
+            out.write(segment.name);
+            if (extraLength > 0) {
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (sizes64) {
+                    writeLong(segment.size);
+                    writeLong(segment.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(segment.offset);
+                }
+            }
+        }
+        
+        long end = out.count;
+        long size = end - start;
+        int entries = written.size();
+        
+        boolean zip64 = entries >= ZIP64_ENTRIES_LIMIT || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT;
+        if (zip64) {
+            //zip64 end of central directory record and its locator
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries);
+            writeLong(entries);
+            writeLong(size);
+            writeLong(start);
+            
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+        
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? ZIP64_ENTRIES_LIMIT : entries);
+        writeShort(zip64 ? ZIP64_ENTRIES_LIMIT : entries);
+        writeInt(zip64 ? ZIP64_LIMIT : size);
+        writeInt(zip64 ? ZIP64_LIMIT : start);
+        writeShort(0);
+    }
+    
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+    
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+    
+    private void writeLong(long value) throws IOException {
+        writeInt(value & 0xFFFFFFFFL);
+        writeInt(value >>> 32);
+    }
+    
+    private static int toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+    
+    /**
+     * An entry ready to be written.
+     */
+    private static class Segment {
+        private final File file;
+        private final byte[] name;
+        private final int dosTime;
+        private int method;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        private SpillOutputStream data;
+        
+        Segment(File file, String entryName) throws IOException {
+            this.file = file;
+            this.name = entryName.getBytes("UTF-8");
+            this.dosTime = toDosTime(file.lastModified());
+        }
+        
+        /**
+         * The data is copied from the file as is.
+         */
+        void stored() {
+            method = STORED;
+            compressedSize = size;
+            data = null;
+        }
+        
+        void release() {
+            if (data != null) {
+                data.release();
+                data = null;
+            }
+        }
+    }
+    
+    /**
+     * Buffers in memory up to the memory limit, in a temporary file after that.
+     */
+    private class SpillOutputStream extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File tmpFile;
+        private OutputStream fileOut;
+        private long size;
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && size + len > memoryLimit) {
+                tmpDir.mkdirs();
+                tmpFile = File.createTempFile("zipentry", ".tmp", tmpDir);
+                fileOut = new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+            size += len;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+        
+        InputStream getInputStream() throws IOException {
+            if (tmpFile != null) {
+                return new FileInputStream(tmpFile);
+            }
+            
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        
+        void release() {
+            memory = null;
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    //deleted anyway
+                }
+            }
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+    
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
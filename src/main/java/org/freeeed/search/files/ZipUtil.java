@@ -22,14 +22,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 public class ZipUtil {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //formats which are compressed already, deflating them again only costs time
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "pdf", "jpg", "jpeg", "png", "gif", "tif", "tiff", "zip", "gz", "tgz", "bz2", "7z", "rar",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "mp3", "mp4", "avi", "mov", "pst"));
 
     /**
      * Create a zip file from the given directory to zip.
@@ -87,18 +98,65 @@ public class ZipUtil {
                 addDirectory(zout, file, path + file.getName() + File.separator);
                 continue;
             }
-            byte[] buffer = new byte[1024];
-            FileInputStream fin = new FileInputStream(file);
-            zout.putNextEntry(new ZipEntry(path + file.getName()));
+            addFile(zout, file, path + file.getName());
+        }
+    }
+
+    /**
+     * Add the given file as a new entry of an open zip stream.
+     *
+     * @param zout
+     * @param file
+     * @param entryName
+     * @throws IOException
+     */
+    public static void addFile(ZipOutputStream zout, File file, String entryName) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        ZipEntry entry = new ZipEntry(entryName);
+        entry.setTime(file.lastModified());
+        if (isCompressed(file.getName())) {
+            //a stored entry needs its size and checksum before the data
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(checksum(file, buffer));
+        }
+
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            zout.putNextEntry(entry);
             int length;
             while ((length = fin.read(buffer)) > 0) {
                 zout.write(buffer, 0, length);
             }
             zout.closeEntry();
+        } finally {
             fin.close();
         }
     }
 
+    static boolean isCompressed(String fileName) {
+        int extIndex = fileName.lastIndexOf('.');
+        return extIndex != -1
+                && COMPRESSED_EXTENSIONS.contains(fileName.substring(extIndex + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    private static long checksum(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+
+        return crc.getValue();
+    }
+
     /**
      * Unzip a given zip file to a specified output directory.
      *
@@ -23,6 +23,7 @@ public class WebConstants {
 	public static final String MAIN_PAGE = "main";
 	public static final String SEARCH_PAGE = "search";
 	public static final String SEARCH_AJAX_PAGE = "search-ajax";
+	public static final String DOCUMENT_AJAX_PAGE = "document-ajax";
 	public static final String TAG_PAGE = "tag";
 	public static final String LOGOUT_PAGE = "logout";
     public static final String LIST_USERS_PAGE = "listUsers";
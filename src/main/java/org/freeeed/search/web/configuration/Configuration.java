@@ -18,6 +18,7 @@ package org.freeeed.search.web.configuration;
 
 import org.freeeed.search.web.dao.settings.AppSettingsDao;
 import org.freeeed.search.web.model.AppSettings;
+import org.freeeed.search.web.solr.CommitPolicy;
 
 /**
  * 
@@ -49,6 +50,24 @@ public class Configuration {
         return 10;
     }
     
+    public CommitPolicy getCommitPolicy() {
+        AppSettings appSettings = appSettingsDao.loadSettings();
+        if (appSettings != null) {
+            return CommitPolicy.parse(appSettings.getCommitPolicy());
+        }
+        
+        return CommitPolicy.HARD;
+    }
+    
+    public int getCommitWithinMillis() {
+        AppSettings appSettings = appSettingsDao.loadSettings();
+        if (appSettings != null && appSettings.getCommitWithinMillis() > 0) {
+            return appSettings.getCommitWithinMillis();
+        }
+        
+        return 1000;
+    }
+    
     public void setAppSettingsDao(AppSettingsDao appSettingsDao) {
         this.appSettingsDao = appSettingsDao;
     }
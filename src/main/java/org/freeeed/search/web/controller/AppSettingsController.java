@@ -25,6 +25,7 @@ import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.dao.settings.AppSettingsDao;
 import org.freeeed.search.web.model.AppSettings;
 import org.freeeed.search.web.model.User;
+import org.freeeed.search.web.solr.CommitPolicy;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
@@ -54,6 +55,8 @@ public class AppSettingsController extends SecureController {
         }
         
         valueStack.put("appSettings", appSettings);
+        valueStack.put("commitPolicies", CommitPolicy.values());
+        valueStack.put("commitPolicy", CommitPolicy.parse(appSettings.getCommitPolicy()).name());
         
         String action = (String) valueStack.get("action");
         
@@ -75,8 +78,25 @@ public class AppSettingsController extends SecureController {
                 errors.add("Invalid solr endpoint");
             }
             
+            CommitPolicy commitPolicy = CommitPolicy.parse((String) valueStack.get("commit_policy"));
+            
+            int commitWithinMillis = 0;
+            if (commitPolicy == CommitPolicy.COMMIT_WITHIN) {
+                String commitWithinStr = (String) valueStack.get("commit_within");
+                try {
+                    commitWithinMillis = Integer.parseInt(commitWithinStr);
+                    if (commitWithinMillis <= 0) {
+                        errors.add("Invalid commit within time");
+                    }
+                } catch (Exception e) {
+                    errors.add("Invalid commit within time");
+                }
+            }
+            
             appSettings.setResultsPerPage(resultsPerPage);
             appSettings.setSolrEndpoint(solrEndpoint);
+            appSettings.setCommitPolicy(commitPolicy.name());
+            appSettings.setCommitWithinMillis(commitWithinMillis);
             
             valueStack.put("errors", errors);
             if (errors.size() == 0) {
@@ -16,16 +16,19 @@
 */
 package org.freeeed.search.web.controller;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.freeeed.search.files.CaseFileService;
+import org.freeeed.search.files.ExportJob;
+import org.freeeed.search.files.ExportJobService;
 import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.model.Case;
 import org.freeeed.search.web.model.solr.SolrDocument;
 import org.freeeed.search.web.model.solr.SolrEntry;
-import org.freeeed.search.web.model.solr.SolrResult;
 import org.freeeed.search.web.model.solr.Tag;
 import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.FieldProfile;
+import org.freeeed.search.web.solr.SearchQuery;
+import org.freeeed.search.web.solr.SolrDocumentBatchIterator;
 import org.freeeed.search.web.solr.SolrSearchService;
 import org.springframework.web.servlet.ModelAndView;
 
@@ -45,8 +48,10 @@ public class CaseFileDownloadController extends SecureController {
 
     private CaseFileService caseFileService;
     private SolrSearchService searchService;
+    private ExportJobService exportJobService;
 
     private static final String tagsSeparator = ";";
+    private static final int EXPORT_BATCH_SIZE = 1000;
 
     @Override
     public ModelAndView execute() {
@@ -82,19 +87,10 @@ public class CaseFileDownloadController extends SecureController {
                 toDownload = caseFileService.getHtmlImageFile(selectedCase.getName(), docPath);
                 htmlMode = true;
             } else if ("exportNativeAll".equals(action)) {
-                String query = solrSession.buildSearchQuery();
-                int rows = solrSession.getTotalDocuments();
-
-                List<SolrDocument> docs = getDocumentPaths(query, 0, rows);
-
-                toDownload = caseFileService.getNativeFiles(selectedCase.getName(), docs);
-
+                if (exportAll(solrSession, ExportJob.Type.NATIVE, null)) {
+                    return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+                }
             } else if ("exportNativeAllFromSource".equals(action)) {
-                String query = solrSession.buildSearchQuery();
-                int rows = solrSession.getTotalDocuments();
-
-                List<SolrDocument> docs = getDocumentPaths(query, 0, rows);
-
                 String source = (String) valueStack.get("source");
                 try {
                     source = URLDecoder.decode(source, "UTF-8");
@@ -102,20 +98,38 @@ public class CaseFileDownloadController extends SecureController {
                     log.error(e);
                 }
 
-                toDownload = caseFileService.getNativeFilesFromSource(source, docs);
+                if (exportAll(solrSession, ExportJob.Type.NATIVE_FROM_SOURCE, source)) {
+                    return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+                }
             } else if ("exportImageAll".equals(action)) {
-                String query = solrSession.buildSearchQuery();
-                int rows = solrSession.getTotalDocuments();
-
-                List<SolrDocument> docs = getDocumentPaths(query, 0, rows);
-                toDownload = caseFileService.getImageFiles(selectedCase.getName(), docs);
+                if (exportAll(solrSession, ExportJob.Type.IMAGE, null)) {
+                    return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+                }
+            } else if ("exportstatus".equals(action)) {
+                writeJobResponse(exportJobService.getJob(solrSession, (String) valueStack.get("job")));
+                return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+            } else if ("exportcancel".equals(action)) {
+                String jobId = (String) valueStack.get("job");
+
+                log.debug("Will cancel export job: " + jobId);
+
+                writeJobResponse(exportJobService.cancel(solrSession, jobId));
+                return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+            } else if ("exportdownload".equals(action)) {
+                ExportJob job = exportJobService.getJob(solrSession, (String) valueStack.get("job"));
+                File zip = job != null ? job.getFile() : null;
+                if (zip != null) {
+                    new FileResponseWriter(request, response).send(zip, "application/zip", job.getFileName());
+                    return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
+                }
             } else if ("exportLoadFile".equals(action)) {
-                String query = solrSession.buildSearchQuery();
-                int rows = solrSession.getTotalDocuments();
-                Map<String, String> hashDocWithAllTags = getRawDocumentsWithAllTags(query, 0, rows);
-                File file = caseFileService.getTaggedLoadFile(selectedCase.getName(), hashDocWithAllTags);
-                if (file != null) {
-                    writeCSVResponse(FileUtils.readFileToByteArray(file));
+                File loadFile = caseFileService.getLoadFile(selectedCase.getName());
+                if (loadFile != null) {
+                    Map<String, String> hashDocWithAllTags = getRawDocumentsWithAllTags(solrSession.buildSearchQuery());
+                    if (hashDocWithAllTags == null) {
+                        throw new IOException("Problem reading the documents from Solr");
+                    }
+                    writeCSVResponse(loadFile, hashDocWithAllTags);
                     return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
                 }
             }
@@ -124,35 +138,11 @@ public class CaseFileDownloadController extends SecureController {
             valueStack.put("error", true);
         }
 
-        if (toDownload != null) {
+        if (toDownload != null && toDownload.isFile()) {
             try {
-                int length;
-                ServletOutputStream outStream = response.getOutputStream();
-                String mimetype = "application/octet-stream";
-                if (htmlMode) {
-                    mimetype = "text/html";
-                }
-
-                response.setContentType(mimetype);
-                response.setContentLength((int) toDownload.length());
-                String fileName = toDownload.getName();
-
-                if (!htmlMode) {
-                    // sets HTTP header
-                    response.setHeader("Content-Disposition", "attachment; filename=\""
-                            + fileName + "\"");
-                }
-
-                byte[] byteBuffer = new byte[1024];
-                DataInputStream in = new DataInputStream(new FileInputStream(toDownload));
-
-                // reads the file's bytes and writes them to the response stream
-                while ((length = in.read(byteBuffer)) != -1) {
-                    outStream.write(byteBuffer, 0, length);
-                }
-
-                in.close();
-                outStream.close();
+                new FileResponseWriter(request, response).send(toDownload,
+                        htmlMode ? "text/html" : "application/octet-stream",
+                        htmlMode ? null : toDownload.getName());
             } catch (Exception e) {
                 log.error("Problem sending cotent", e);
                 valueStack.put("error", true);
@@ -164,27 +154,82 @@ public class CaseFileDownloadController extends SecureController {
         return new ModelAndView(WebConstants.CASE_FILE_DOWNLOAD);
     }
 
-    private void writeCSVResponse(byte[] resultBytes) throws IOException {
-        response.setContentType("text/csv");
-        response.setHeader("Content-Disposition", "attachment; filename=result.csv");
+    /**
+     * Export the files of all documents of the search. The pages submit
+     * a background job and poll it, with stream=true the zip is streamed
+     * straight to the response instead, for clients which wait for it.
+     *
+     * @return false if the export could not be streamed and nothing was sent.
+     * @throws IOException
+     */
+    private boolean exportAll(SolrSessionObject solrSession, ExportJob.Type type, String source)
+            throws IOException {
+        if (!"true".equals(valueStack.get("stream"))) {
+            writeJobResponse(exportJobService.submit(solrSession, type, source));
+            return true;
+        }
+
+        return exportJobService.stream(solrSession, type, source, new ExportJobService.Output() {
+            @Override
+            public OutputStream open(ExportJob job) throws IOException {
+                response.setContentType("application/zip");
+                response.setHeader("Content-Disposition", "attachment; filename=\"" + job.getFileName() + "\"");
+                return response.getOutputStream();
+            }
+        });
+    }
+
+    /**
+     * The export job state as JSON, ERROR if there is no such job.
+     *
+     * @param job
+     * @throws IOException
+     */
+    private void writeJobResponse(ExportJob job) throws IOException {
+        String result = job != null ? JobJson.toJson(job) : "ERROR";
+
+        byte[] resultBytes = result.getBytes("UTF-8");
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
         response.setContentLength(resultBytes.length);
         ServletOutputStream out = response.getOutputStream();
         out.write(resultBytes);
         out.close();
     }
 
-    private Map<String, String> getRawDocumentsWithAllTags(String query, int from, int rows) {
-        SolrResult solrResult = searchService.search(query, from, rows, null, false, "id,Hash,tags-search-field");
-        Map<String, SolrDocument> documents = solrResult.getDocuments();
+    /**
+     * The joined load file is written to the response as it is read,
+     * its length is not known up front.
+     *
+     */
+    private void writeCSVResponse(File loadFile, Map<String, String> hashDocWithAllTags) throws IOException {
+        response.setContentType("text/csv");
+        response.setHeader("Content-Disposition", "attachment; filename=result.csv");
+        ServletOutputStream out = response.getOutputStream();
+        caseFileService.writeTaggedLoadFile(loadFile, hashDocWithAllTags, out);
+        out.close();
+    }
+
+    private Map<String, String> getRawDocumentsWithAllTags(SearchQuery query) {
+        //the load file is joined by hash, so only hash and tags are kept per document,
+        //and only for the tagged documents
+        List<String> filters = new ArrayList<String>(query.getFilters());
+        filters.add("tags-search-field:*");
+        query = new SearchQuery(query.getQuery(), filters);
+
         Map<String, String> hashDocTagsMap = new HashMap<String, String>();
-        Iterator<Map.Entry<String, SolrDocument>> iterator = documents.entrySet().iterator();
-        while (iterator.hasNext()) {
-            SolrDocument solrDocument = iterator.next().getValue();
-            List<SolrEntry> entries = solrDocument.getEntries();
-            List<Tag> tags = solrDocument.getTags();
-            populateMapWithHashAndTags(hashDocTagsMap, entries, tags);
+        SolrDocumentBatchIterator batches = searchService.iterate(query, FieldProfile.LOAD_FILE, EXPORT_BATCH_SIZE);
+        try {
+            while (batches.hasNext()) {
+                for (SolrDocument solrDocument : batches.next()) {
+                    populateMapWithHashAndTags(hashDocTagsMap, solrDocument.getEntries(), solrDocument.getTags());
+                }
+            }
+        } finally {
+            batches.close();
         }
-        return hashDocTagsMap;
+
+        return batches.hasError() ? null : hashDocTagsMap;
     }
 
     private void populateMapWithHashAndTags(Map<String, String> hashDocTagsMap, List<SolrEntry> entries, List<Tag> tags) {
@@ -207,13 +252,6 @@ public class CaseFileDownloadController extends SecureController {
         }
     }
 
-    private List<SolrDocument> getDocumentPaths(String query, int from, int rows) {
-        SolrResult solrResult = searchService.search(query, from, rows, null, false, "id,document_original_path,unique_id");
-        List<SolrDocument> result = new ArrayList<SolrDocument>(solrResult.getTotalSize());
-        result.addAll(solrResult.getDocuments().values());
-        return result;
-    }
-
     public void setCaseFileService(CaseFileService caseFileService) {
         this.caseFileService = caseFileService;
     }
@@ -221,4 +259,8 @@ public class CaseFileDownloadController extends SecureController {
     public void setSearchService(SolrSearchService searchService) {
         this.searchService = searchService;
     }
+
+    public void setExportJobService(ExportJobService exportJobService) {
+        this.exportJobService = exportJobService;
+    }
 }
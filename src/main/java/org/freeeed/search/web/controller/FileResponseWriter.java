@@ -0,0 +1,240 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 
+ * Class FileResponseWriter.
+ * 
+ * Sends a file as the response. The file channel is transferred to the
+ * response directly, so the container can use zero-copy transfers where
+ * it supports them.
+ * 
+ * Single byte ranges are served as partial content, and conditional
+ * requests matching the ETag or Last-Modified of the file get a 304.
+ * Multiple ranges are answered with the whole file.
+ */
+class FileResponseWriter {
+    private static final String RANGE_PREFIX = "bytes=";
+    
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    
+    FileResponseWriter(HttpServletRequest request, HttpServletResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+    
+    /**
+     * 
+     * @param file
+     * @param contentType
+     * @param fileName the attachment name, the file is shown inline if null.
+     * @throws IOException
+     */
+    void send(File file, String contentType, String fileName) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        
+        if (isNotModified(etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        long start = 0;
+        long end = length - 1;
+        
+        String range = request.getHeader("Range");
+        if (range != null && isRangeValid(etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            
+            if (bounds.length > 0) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        
+        response.setContentType(contentType);
+        //setContentLength() takes an int, files over 2 GB need the header
+        response.setHeader("Content-Length", Long.toString(end - start + 1));
+        if (fileName != null) {
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        }
+        
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        
+        OutputStream out = response.getOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            transfer(in.getChannel(), start, end - start + 1, Channels.newChannel(out));
+        } finally {
+            in.close();
+        }
+        out.close();
+    }
+    
+    private void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0) {
+                throw new IOException("File truncated while being sent");
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+    
+    /**
+     * If-None-Match takes precedence over If-Modified-Since, the dates
+     * are compared in seconds as that's what the header carries.
+     * 
+     */
+    private boolean isNotModified(String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        
+        long ifModifiedSince = getDateHeader("If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    
+    /**
+     * If-Range asks for the range only if the file is still the same,
+     * otherwise the whole file is sent.
+     * 
+     */
+    private boolean isRangeValid(String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.trim().equals(etag);
+        }
+        
+        long date = getDateHeader("If-Range");
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+    
+    private boolean matchesEtag(String header, String etag) {
+        for (String value : header.split(",")) {
+            value = value.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            
+            if ("*".equals(value) || etag.equals(value)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private long getDateHeader(String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Parse a single byte range: "first-last", "first-" or "-suffixLength".
+     * 
+     * @param range
+     * @param length
+     * @return the first and last byte, an empty array to send the whole file,
+     * null if the range can't be satisfied.
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith(RANGE_PREFIX) || range.indexOf(',') != -1) {
+            return new long[0];
+        }
+        
+        String spec = range.substring(RANGE_PREFIX.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return new long[0];
+        }
+        
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            
+            long start;
+            long end;
+            if (first.length() == 0) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (last.length() == 0) {
+                    end = length - 1;
+                } else {
+                    end = Long.parseLong(last);
+                    if (end < start) {
+                        //not a valid range, ignored
+                        return new long[0];
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            }
+            
+            if (start >= length) {
+                return null;
+            }
+            
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+}
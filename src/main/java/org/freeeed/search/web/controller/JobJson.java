@@ -0,0 +1,95 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.controller;
+
+import org.freeeed.search.files.ExportJob;
+import org.freeeed.search.web.solr.TagJob;
+
+/**
+ * 
+ * Class JobJson.
+ * 
+ * The state of a background job as polled by the pages - id, status,
+ * progress, rate and ETA - in the same JSON shape for every kind of job.
+ */
+final class JobJson {
+    
+    private JobJson() {
+    }
+    
+    static String toJson(TagJob job) {
+        return toJson(job.getId(), job.getStatus().toString(), job.getProcessed(), job.getTotal(),
+                job.getRate(), job.getEta());
+    }
+    
+    static String toJson(ExportJob job) {
+        return toJson(job.getId(), job.getStatus().toString(), job.getProcessed(), job.getTotal(),
+                job.getRate(), job.getEta());
+    }
+    
+    private static String toJson(String id, String status, int processed, int total, double rate, long eta) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"job\":");
+        appendString(result, id);
+        result.append(",\"status\":");
+        appendString(result, status);
+        result.append(",\"processed\":").append(processed)
+                .append(",\"total\":").append(total)
+                .append(",\"rate\":").append(Math.round(rate))
+                .append(",\"eta\":").append(eta)
+                .append("}");
+        
+        return result.toString();
+    }
+    
+    /**
+     * Append the value as a quoted JSON string.
+     * 
+     * @param result
+     * @param value
+     */
+    static void appendString(StringBuilder result, String value) {
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    result.append("\\\"");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        result.append(c);
+                    }
+            }
+        }
+        result.append('"');
+    }
+}
@@ -17,7 +17,9 @@
 package org.freeeed.search.web.controller;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.servlet.http.HttpSession;
 
@@ -26,8 +28,11 @@ import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.configuration.Configuration;
 import org.freeeed.search.web.model.solr.SolrResult;
 import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.FieldProfile;
 import org.freeeed.search.web.solr.KeywordQuerySearch;
 import org.freeeed.search.web.solr.QuerySearch;
+import org.freeeed.search.web.solr.SearchQuery;
+import org.freeeed.search.web.solr.SolrPagePrefetcher;
 import org.freeeed.search.web.solr.SolrSearchService;
 import org.freeeed.search.web.solr.TagQuerySearch;
 import org.freeeed.search.web.view.solr.ResultHighlight;
@@ -52,6 +57,7 @@ public class SearchController extends SecureController {
     private SolrSearchService solrSearchService;
     private SearchViewPreparer searchViewPreparer;
     private ResultHighlight resultHighlight;
+    private SolrPagePrefetcher pagePrefetcher;
     
     @Override
     public ModelAndView execute() {
@@ -68,6 +74,10 @@ public class SearchController extends SecureController {
             session.setAttribute(WebConstants.WEB_SESSION_SOLR_OBJECT, solrSession);
         }
         
+        if ("document".equals(action)) {
+            return showDocument(solrSession);
+        }
+        
         int page = 1;
         int rows = configuration.getNumberOfRows();
         int from = 0;
@@ -77,7 +87,7 @@ public class SearchController extends SecureController {
             //setup the query
             String search = (String) valueStack.get("query");
             if (search != null && search.length() > 0) {
-                KeywordQuerySearch qs = new KeywordQuerySearch(search, solrSearchService, from, rows);
+                KeywordQuerySearch qs = new KeywordQuerySearch(search);
                 solrSession.addQuery(qs);
             }
             
@@ -120,28 +130,42 @@ public class SearchController extends SecureController {
             }
         }
         
-        List<YourSearchViewObject> yourSearches = new ArrayList<YourSearchViewObject>();
-        
         List<QuerySearch> searches = solrSession.getQueries();
-        for (int i = 0; i < searches.size(); i++) {
-            QuerySearch querySearch = searches.get(i);
-            querySearch.adjust(from, rows);
-            
-            YourSearchViewObject so = new YourSearchViewObject();
-            so.setId(i + 1);
-            so.setName(querySearch.getDisplay());
-            so.setKeywords(querySearch.getSearchKeywords());
-            
-            yourSearches.add(so);
-        }
         
         if (searches.size() > 0) {
         
-            String search = solrSession.buildSearchQuery();
+            SearchQuery search = solrSession.buildSearchQuery();
+            String highlightQuery = solrSession.buildHighlightQuery();
+            
+            //the result cache can be bypassed per request with nocache=true
+            boolean useCache = !"true".equals(valueStack.get("nocache"));
+            
+            //documents and highlighted keywords in a single request, pages reached
+            //sequentially use the cursor returned with the previous page
+            SolrResult result = null;
+            if (useCache && pagePrefetcher != null) {
+                result = pagePrefetcher.take(solrSession, search, highlightQuery, page, rows);
+            }
+            
+            String cursorMark = solrSession.getPageCursor(page, rows);
+            if (result != null) {
+                log.debug("Page " + page + " served from prefetch");
+            } else if (cursorMark != null) {
+                result = solrSearchService.searchPage(search, highlightQuery, cursorMark, rows,
+                        FieldProfile.LIST, useCache);
+            } else {
+                result = solrSearchService.search(search, highlightQuery, from, rows,
+                        FieldProfile.LIST, useCache);
+            }
+            
+            if (result != null && result.getNextCursorMark() != null) {
+                solrSession.setPageCursor(page + 1, rows, result.getNextCursorMark());
+            }
             
-            SolrResult result = solrSearchService.search(search, from, rows);
             //if solr returns correct result
             if (result != null) {
+                List<YourSearchViewObject> yourSearches = prepareSearches(searches, result);
+                
                 //prepare the view data
                 SearchResult resultView = searchViewPreparer.prepareView(result);
                 resultHighlight.highlight(resultView, yourSearches);
@@ -158,6 +182,12 @@ public class SearchController extends SecureController {
                 
                 solrSession.setTotalPage(total);
                 solrSession.setTotalDocuments(result.getTotalSize());
+                
+                //reviewers usually go to the next page right after this one
+                if (pagePrefetcher != null && page < total) {
+                    pagePrefetcher.prefetch(solrSession, search, highlightQuery, page + 1, rows,
+                            result.getNextCursorMark());
+                }
                                 
                 setupPagination();
             }
@@ -166,6 +196,64 @@ public class SearchController extends SecureController {
         return new ModelAndView(WebConstants.SEARCH_AJAX_PAGE);
     }
     
+    /**
+     * Load all stored fields of a single document, the results list
+     * only carries the fields of the list view.
+     * 
+     */
+    private ModelAndView showDocument(SolrSessionObject solrSession) {
+        String documentId = (String) valueStack.get("id");
+        if (documentId != null && documentId.length() > 0) {
+            SolrResult result = solrSearchService.getDocument(documentId, solrSession.buildHighlightQuery());
+            if (result != null && result.getDocuments().size() > 0) {
+                List<YourSearchViewObject> yourSearches = prepareSearches(solrSession.getQueries(), result);
+                
+                SearchResult resultView = searchViewPreparer.prepareView(result);
+                resultHighlight.highlight(resultView, yourSearches);
+                
+                valueStack.put("doc", resultView.getDocuments().get(0));
+            }
+        }
+        
+        return new ModelAndView(WebConstants.DOCUMENT_AJAX_PAGE);
+    }
+    
+    /**
+     * Build the "your searches" view objects, assigning the highlighted
+     * words of the result to the search they come from.
+     * 
+     */
+    private List<YourSearchViewObject> prepareSearches(List<QuerySearch> searches, SolrResult result) {
+        List<YourSearchViewObject> yourSearches = new ArrayList<YourSearchViewObject>();
+        Set<String> unassigned = new HashSet<String>(result.getHighlightedWords());
+        YourSearchViewObject firstKeywordSearch = null;
+        
+        for (int i = 0; i < searches.size(); i++) {
+            QuerySearch querySearch = searches.get(i);
+            
+            YourSearchViewObject so = new YourSearchViewObject();
+            so.setId(i + 1);
+            so.setName(querySearch.getDisplay());
+            so.setKeywords(querySearch.getSearchKeywords(result.getHighlightedWords()));
+            
+            if (querySearch.getHighlightQuery() != null) {
+                unassigned.removeAll(so.getKeywords());
+                if (firstKeywordSearch == null) {
+                    firstKeywordSearch = so;
+                }
+            }
+            
+            yourSearches.add(so);
+        }
+        
+        //words which can't be matched to a search term (e.g. fuzzy matches)
+        if (firstKeywordSearch != null) {
+            firstKeywordSearch.getKeywords().addAll(unassigned);
+        }
+        
+        return yourSearches;
+    }
+    
     private void setupPagination() {
         SolrSessionObject session = (SolrSessionObject) 
             this.request.getSession(true).getAttribute("solrSession");
@@ -192,4 +280,8 @@ public class SearchController extends SecureController {
     public void setResultHighlight(ResultHighlight resultHighlight) {
         this.resultHighlight = resultHighlight;
     }
+
+    public void setPagePrefetcher(SolrPagePrefetcher pagePrefetcher) {
+        this.pagePrefetcher = pagePrefetcher;
+    }
 }
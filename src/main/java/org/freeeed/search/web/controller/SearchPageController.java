@@ -24,6 +24,7 @@ import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.dao.cases.CaseDao;
 import org.freeeed.search.web.model.Case;
 import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.TagUsageService;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
@@ -37,6 +38,7 @@ import org.springframework.web.servlet.ModelAndView;
  */
 public class SearchPageController extends SecureController {
     private CaseDao caseDao;
+    private TagUsageService tagUsageService;
     
     @Override
     public ModelAndView execute() {
@@ -63,7 +65,7 @@ public class SearchPageController extends SecureController {
         
         valueStack.put("selectedCase", solrSession.getSelectedCase());
         if (solrSession.getSelectedCase() != null) {
-            valueStack.put("tags", solrSession.getSelectedCase().getTags());
+            putTags(solrSession.getSelectedCase());
         }
         
         String action = (String) valueStack.get("action");
@@ -73,15 +75,26 @@ public class SearchPageController extends SecureController {
                 Case selected = caseDao.findCase(Long.parseLong(caseIdStr));
                 solrSession.setSelectedCase(selected);
                 valueStack.put("selectedCase", solrSession.getSelectedCase());
-                valueStack.put("tags", solrSession.getSelectedCase().getTags());
+                putTags(solrSession.getSelectedCase());
             } catch (Exception e) {
             }
         }
         
         return new ModelAndView(WebConstants.SEARCH_PAGE);
     }
+    
+    private void putTags(Case c) {
+        valueStack.put("tags", c.getTags());
+        if (c.getSolrSourceCore() != null) {
+            valueStack.put("tagCounts", tagUsageService.getCounts(c.getSolrSourceCore()));
+        }
+    }
 
     public void setCaseDao(CaseDao caseDao) {
         this.caseDao = caseDao;
     }
+
+    public void setTagUsageService(TagUsageService tagUsageService) {
+        this.tagUsageService = tagUsageService;
+    }
 }
@@ -20,6 +20,8 @@ import org.apache.log4j.Logger;
 import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.session.SolrSessionObject;
 import org.freeeed.search.web.solr.SolrTagService;
+import org.freeeed.search.web.solr.TagJob;
+import org.freeeed.search.web.solr.TagJobService;
 import org.freeeed.search.web.solr.SolrTagService.Result;
 import org.springframework.web.servlet.ModelAndView;
 
@@ -36,6 +38,7 @@ public class TagController extends SecureController {
     private static final Logger log = Logger.getLogger(TagController.class);
 
     private SolrTagService solrTagService;
+    private TagJobService tagJobService;
 
     @Override
     public ModelAndView execute() {
@@ -78,8 +81,8 @@ public class TagController extends SecureController {
             log.debug("removing from every docs tag = " + tag);
 
             if (tag != null && tag.trim().length() > 0) {
-                Result result = solrTagService.removeTagFromAllDocs(tag);
-                valueStack.put("result", result);
+                TagJob job = tagJobService.submitRemoveTagFromAll(solrSession, tag);
+                valueStack.put("result", buildJobResult(job));
             }
         } else if ("tagall".equals(action)) {
             String tag = (String) valueStack.get("tag");
@@ -87,9 +90,9 @@ public class TagController extends SecureController {
             log.debug("Will do tag all, tag: " + tag);
 
             if (tag != null && tag.trim().length() > 0) {
-                Result result = solrTagService.tagAllDocuments(solrSession, tag);
+                TagJob job = tagJobService.submitTagAll(solrSession, tag);
 
-                valueStack.put("result", result);
+                valueStack.put("result", buildJobResult(job));
             }
         } else if ("tagpage".equals(action)) {
             String tag = (String) valueStack.get("tag");
@@ -101,12 +104,35 @@ public class TagController extends SecureController {
 
                 valueStack.put("result", result);
             }
+        } else if ("jobstatus".equals(action)) {
+            String jobId = (String) valueStack.get("job");
+            valueStack.put("result", buildJobResult(tagJobService.getJob(solrSession, jobId)));
+        } else if ("canceljob".equals(action)) {
+            String jobId = (String) valueStack.get("job");
+
+            log.debug("Will cancel tag job: " + jobId);
+
+            valueStack.put("result", buildJobResult(tagJobService.cancel(solrSession, jobId)));
         }
 
         return new ModelAndView(WebConstants.TAG_PAGE);
     }
 
+    /**
+     * The job state as JSON, ERROR if there is no such job.
+     *
+     * @param job
+     * @return
+     */
+    private String buildJobResult(TagJob job) {
+        return job != null ? JobJson.toJson(job) : Result.ERROR.toString();
+    }
+
     public void setSolrTagService(SolrTagService solrTagService) {
         this.solrTagService = solrTagService;
     }
+
+    public void setTagJobService(TagJobService tagJobService) {
+        this.tagJobService = tagJobService;
+    }
 }
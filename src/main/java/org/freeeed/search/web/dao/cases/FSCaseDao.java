@@ -16,6 +16,7 @@
 */
 package org.freeeed.search.web.dao.cases;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -40,9 +41,9 @@ import org.freeeed.search.web.model.Case;
  *
  */
 public class FSCaseDao implements CaseDao {
-    private static final String CASES_FILE = "work/c.dat";
     private static final Logger logger = Logger.getLogger(FSCaseDao.class);
     
+    private String casesFile = "work/c.dat";
     private Map<Long, Case> casesCache;
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
     private AtomicLong idGenerator;
@@ -114,24 +115,38 @@ public class FSCaseDao implements CaseDao {
         }
     }
 
+    /**
+     * Write all cases to a temporary file and replace the cases file with it,
+     * so a failed write does not lose the stored cases.
+     * 
+     */
     private void storeCases() {
         FileOutputStream fos = null;
         ObjectOutputStream oos = null;
         
         try {
-            File dir = new File(CASES_FILE);
-            File parent = dir.getParentFile();
+            File file = new File(casesFile);
+            File parent = file.getParentFile();
             if (!parent.exists()) {
                 parent.mkdirs();
             }
             
-            fos = new FileOutputStream(dir);
-            oos = new ObjectOutputStream(fos);
+            File tmpFile = new File(casesFile + ".tmp");
+            fos = new FileOutputStream(tmpFile);
+            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
             
             oos.writeObject(casesCache);
             
             oos.close();
             fos.close();
+            
+            if (!tmpFile.renameTo(file)) {
+                //not atomic on all platforms
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    logger.error("Problem replacing the cases file with: " + tmpFile.getAbsolutePath());
+                }
+            }
         } catch (Exception e) {
             logger.error("Problem storing cases from file system!", e);
         } finally {
@@ -156,9 +171,9 @@ public class FSCaseDao implements CaseDao {
     private void loadCases() {
         FileInputStream fis = null;
         ObjectInputStream ois = null;
-        logger.info("Preparing to open the file " + new File(CASES_FILE).getAbsolutePath());
+        logger.info("Preparing to open the file " + new File(casesFile).getAbsolutePath());
         try {
-            fis = new FileInputStream(CASES_FILE);
+            fis = new FileInputStream(casesFile);
             ois = new ObjectInputStream(fis);
             
             @SuppressWarnings("unchecked")
@@ -197,4 +212,8 @@ public class FSCaseDao implements CaseDao {
         
         idGenerator = new AtomicLong(max);
     }
+
+    public void setCasesFile(String casesFile) {
+        this.casesFile = casesFile;
+    }
 }
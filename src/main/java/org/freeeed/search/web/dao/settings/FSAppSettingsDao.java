@@ -59,6 +59,8 @@ public class FSAppSettingsDao implements AppSettingsDao {
         
         result.setResultsPerPage(appSettings.getResultsPerPage());
         result.setSolrEndpoint(appSettings.getSolrEndpoint());
+        result.setCommitPolicy(appSettings.getCommitPolicy());
+        result.setCommitWithinMillis(appSettings.getCommitWithinMillis());
         
         return result;
     }
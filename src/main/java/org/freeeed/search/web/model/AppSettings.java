@@ -30,6 +30,8 @@ public class AppSettings implements Serializable {
     
     private int resultsPerPage;
     private String solrEndpoint;
+    private String commitPolicy;
+    private int commitWithinMillis;
     
     public int getResultsPerPage() {
         return resultsPerPage;
@@ -46,4 +48,20 @@ public class AppSettings implements Serializable {
     public void setSolrEndpoint(String solrEndpoint) {
         this.solrEndpoint = solrEndpoint;
     }
+    
+    public String getCommitPolicy() {
+        return commitPolicy;
+    }
+    
+    public void setCommitPolicy(String commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+    
+    public int getCommitWithinMillis() {
+        return commitWithinMillis;
+    }
+    
+    public void setCommitWithinMillis(int commitWithinMillis) {
+        this.commitWithinMillis = commitWithinMillis;
+    }
 }
@@ -16,6 +16,8 @@
 */
 package org.freeeed.search.web.model;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -98,18 +100,31 @@ public class Case implements Serializable {
         this.loadFileLocation = loadFileLocation;
     }
 
-    public synchronized void addTag(String tag) {
+    /**
+     * @param tag
+     * @return true if the tag was not in the case yet.
+     */
+    public synchronized boolean addTag(String tag) {
         if (tags == null) {
             tags = new HashSet<String>();
         }
         
-        tags.add(tag);
+        return tags.add(tag);
     }
     
-    public synchronized void removeTag(String tag) {
-        if (tags != null) {
-            tags.remove(tag);
-        }
+    /**
+     * @param tag
+     * @return true if the tag was in the case.
+     */
+    public synchronized boolean removeTag(String tag) {
+        return tags != null && tags.remove(tag);
+    }
+    
+    /**
+     * Tags may change while the cases are stored, serialize a consistent state.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
     }
     
     public synchronized List<String> getTags() {
@@ -16,8 +16,10 @@
 */
 package org.freeeed.search.web.model.solr;
 
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * 
@@ -31,6 +33,8 @@ import java.util.Map;
 public class SolrResult implements Cloneable {
     private Map<String, SolrDocument> documents;
     private int totalSize;
+    private Set<String> highlightedWords = new HashSet<String>();
+    private String nextCursorMark;
     
     public int getTotalSize() {
         return totalSize;
@@ -48,10 +52,26 @@ public class SolrResult implements Cloneable {
         this.documents = documents;
     }
     
+    public Set<String> getHighlightedWords() {
+        return highlightedWords;
+    }
+
+    public void setHighlightedWords(Set<String> highlightedWords) {
+        this.highlightedWords = highlightedWords;
+    }
+    
+    public String getNextCursorMark() {
+        return nextCursorMark;
+    }
+
+    public void setNextCursorMark(String nextCursorMark) {
+        this.nextCursorMark = nextCursorMark;
+    }
+    
     public SolrResult clone() {
         try {
             SolrResult cloned = (SolrResult) super.clone();
-            Map<String, SolrDocument> clonedDocuments = new HashMap<String, SolrDocument>();
+            Map<String, SolrDocument> clonedDocuments = new LinkedHashMap<String, SolrDocument>();
             
             for (SolrDocument doc : documents.values()) {
                 SolrDocument clonedDoc = doc.clone();
@@ -59,6 +79,7 @@ public class SolrResult implements Cloneable {
             }
             
             cloned.documents = clonedDocuments;
+            cloned.highlightedWords = new HashSet<String>(highlightedWords);
             
             return cloned;
         } catch (CloneNotSupportedException e) {
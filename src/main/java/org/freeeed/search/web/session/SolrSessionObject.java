@@ -17,10 +17,15 @@
 package org.freeeed.search.web.session;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.freeeed.search.web.model.Case;
 import org.freeeed.search.web.solr.QuerySearch;
+import org.freeeed.search.web.solr.SearchQuery;
+import org.freeeed.search.web.solr.SolrPagePrefetcher;
+import org.freeeed.search.web.solr.SolrSearchService;
 
 /**
  * 
@@ -37,6 +42,9 @@ public class SolrSessionObject {
     private int totalDocuments;
     private List<QuerySearch> queries = new ArrayList<QuerySearch>();
     private Case selectedCase;
+    private Map<Integer, String> pageCursors = new HashMap<Integer, String>();
+    private int cursorRows;
+    private SolrPagePrefetcher.Slot prefetchSlot;
     
     public int getCurrentPage() {
         return currentPage;
@@ -71,16 +79,75 @@ public class SolrSessionObject {
         }
         
         queries.add(query);
+        pageCursors.clear();
+        clearPrefetchSlot();
     }
     
     public synchronized void removeById(int id) {
         if (id >=0 && id < queries.size()) {
             queries.remove(id);
+            pageCursors.clear();
+            clearPrefetchSlot();
         }
     }
     
     public synchronized void removeAll() {
         queries.clear();
+        pageCursors.clear();
+        clearPrefetchSlot();
+    }
+    
+    /**
+     * The cursorMark of the given page for the current searches,
+     * null if the page was not reached by sequential paging.
+     * 
+     * @param page
+     * @param rows
+     * @return
+     */
+    public synchronized String getPageCursor(int page, int rows) {
+        if (page == 1) {
+            return SolrSearchService.CURSOR_START;
+        }
+        
+        if (rows != cursorRows) {
+            return null;
+        }
+        
+        return pageCursors.get(page);
+    }
+    
+    public synchronized void setPageCursor(int page, int rows, String cursorMark) {
+        if (rows != cursorRows) {
+            pageCursors.clear();
+            cursorRows = rows;
+        }
+        
+        pageCursors.put(page, cursorMark);
+    }
+    
+    /**
+     * Keep the page being prefetched for the current searches,
+     * replacing the previous one.
+     * 
+     * @param slot
+     */
+    public synchronized void setPrefetchSlot(SolrPagePrefetcher.Slot slot) {
+        clearPrefetchSlot();
+        prefetchSlot = slot;
+    }
+    
+    public synchronized SolrPagePrefetcher.Slot takePrefetchSlot() {
+        SolrPagePrefetcher.Slot slot = prefetchSlot;
+        prefetchSlot = null;
+        return slot;
+    }
+    
+    private void clearPrefetchSlot() {
+        if (prefetchSlot != null) {
+            prefetchSlot.cancel();
+            prefetchSlot = null;
+        }
     }
     
     public synchronized List<QuerySearch> getQueries() {
@@ -89,22 +156,58 @@ public class SolrSessionObject {
         return result;
     }
     
-    public String buildSearchQuery() {
-        StringBuffer sb = new StringBuffer();
+    /**
+     * Build the Solr query of all searches. The scoring searches are
+     * joined with AND into the main query, the filter searches (e.g. tags)
+     * become separate filter queries.
+     * 
+     * @return
+     */
+    public synchronized SearchQuery buildSearchQuery() {
+        StringBuilder sb = new StringBuilder();
+        List<String> filters = new ArrayList<String>();
         
-        for (int i = 0; i < queries.size(); i++) {
-            QuerySearch qs = queries.get(i);
-            sb.append("(").append(qs.getQuery()).append(")");
-            if (i < queries.size() - 1) {
+        for (QuerySearch qs : queries) {
+            if (qs.isFilter()) {
+                filters.add(qs.getQuery());
+                continue;
+            }
+            
+            if (sb.length() > 0) {
                 sb.append(" AND ");
             }
+            sb.append("(").append(qs.getQuery()).append(")");
+        }
+        
+        return new SearchQuery(sb.toString(), filters);
+    }
+    
+    /**
+     * Build the query used to highlight the keywords of all
+     * searches, null if no search contributes to highlighting.
+     * 
+     * @return
+     */
+    public synchronized String buildHighlightQuery() {
+        StringBuilder sb = new StringBuilder();
+        
+        for (QuerySearch qs : queries) {
+            String hq = qs.getHighlightQuery();
+            if (hq != null) {
+                if (sb.length() > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append("(").append(hq).append(")");
+            }
         }
         
-        return sb.toString();
+        return sb.length() > 0 ? sb.toString() : null;
     }
     
-    public void reset() {
+    public synchronized void reset() {
         queries.clear();
+        pageCursors.clear();
+        clearPrefetchSlot();
         currentPage = 1;
     }
 
@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+/**
+ * 
+ * Class CommitPolicy.
+ * 
+ * When tag updates are committed in Solr. Every commit which opens a new
+ * searcher drops the caches of the core for all reviewers, so the
+ * policies differ in how often that happens.
+ */
+public enum CommitPolicy {
+    /**
+     * Hard commit once, at the end of each tag operation. A bulk
+     * operation commits after its last batch only.
+     */
+    HARD("Hard commit per operation"),
+    
+    /**
+     * Soft commit once, at the end of each tag operation. Durability
+     * is left to the autoCommit of the core.
+     */
+    SOFT("Soft commit per operation"),
+    
+    /**
+     * No explicit commits, Solr commits within the configured time.
+     */
+    COMMIT_WITHIN("Commit within");
+    
+    private final String display;
+    
+    private CommitPolicy(String display) {
+        this.display = display;
+    }
+    
+    public String getDisplay() {
+        return display;
+    }
+    
+    public String getName() {
+        return name();
+    }
+    
+    /**
+     * @param name
+     * @return the policy with the given name, HARD if unknown, as are
+     * the policies which were removed.
+     */
+    public static CommitPolicy parse(String name) {
+        if (name != null) {
+            for (CommitPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+        }
+        
+        return HARD;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freeeed.search.web.model.solr.SolrDocument;
+import org.freeeed.search.web.model.solr.SolrResult;
+
+/**
+ * 
+ * Class CursorDocumentBatchIterator.
+ * 
+ * Reads the batches from /select, using cursorMark deep paging.
+ */
+class CursorDocumentBatchIterator extends SolrDocumentBatchIterator {
+    private final SolrSearchService searchService;
+    private final SearchQuery query;
+    private final String fields;
+    
+    private String cursorMark = SolrSearchService.CURSOR_START;
+    private boolean last;
+    
+    CursorDocumentBatchIterator(SolrSearchService searchService, String solrCore, 
+            SearchQuery query, String fields, int batchSize) {
+        super(solrCore, batchSize);
+        this.searchService = searchService;
+        this.query = query;
+        this.fields = fields;
+    }
+    
+    @Override
+    protected List<SolrDocument> fetchNext() {
+        if (last) {
+            return null;
+        }
+        
+        SolrResult page = searchService.fetchBatch(solrCore, query, cursorMark, batchSize, fields);
+        if (page == null) {
+            fail();
+            return null;
+        }
+        
+        setTotalSize(page.getTotalSize());
+        
+        List<SolrDocument> batch = new ArrayList<SolrDocument>(page.getDocuments().values());
+        String nextCursorMark = page.getNextCursorMark();
+        if (nextCursorMark == null || nextCursorMark.equals(cursorMark) || batch.size() < batchSize) {
+            last = true;
+        }
+        
+        cursorMark = nextCursorMark;
+        
+        return batch;
+    }
+}
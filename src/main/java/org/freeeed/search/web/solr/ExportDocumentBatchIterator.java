@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.model.solr.SolrDocument;
+import org.freeeed.search.web.solr.response.JsonDocumentStream;
+
+/**
+ * 
+ * Class ExportDocumentBatchIterator.
+ * 
+ * Reads the batches from a single /export response. The handler
+ * streams the sorted docValues of all matching documents, without
+ * using the query threads and caches of /select. The response is
+ * read one batch at a time, as the batches are consumed, so it is
+ * only used for the quick iterations, see FieldProfile.
+ */
+class ExportDocumentBatchIterator extends SolrDocumentBatchIterator {
+    private static final Logger log = Logger.getLogger(ExportDocumentBatchIterator.class);
+    
+    private final SolrHttpClient solrHttpClient;
+    private final DocumentParser documentParser;
+    private final String url;
+    
+    private SolrHttpClient.StreamedResponse response;
+    private JsonDocumentStream stream;
+    private boolean complete;
+    
+    ExportDocumentBatchIterator(SolrHttpClient solrHttpClient, DocumentParser documentParser,
+            String solrCore, String url, int batchSize) {
+        super(solrCore, batchSize);
+        this.solrHttpClient = solrHttpClient;
+        this.documentParser = documentParser;
+        this.url = url;
+    }
+    
+    @Override
+    protected List<SolrDocument> fetchNext() {
+        if (complete) {
+            return null;
+        }
+        
+        try {
+            if (stream == null) {
+                log.debug("Will export: " + url);
+                
+                response = solrHttpClient.open(solrCore, new HttpGet(url));
+                stream = new JsonDocumentStream(response.getContent(), response.getCharset());
+                setTotalSize((int) stream.getNumFound());
+            }
+            
+            List<SolrDocument> batch = new ArrayList<SolrDocument>(batchSize);
+            while (batch.size() < batchSize) {
+                if (!stream.hasNext()) {
+                    complete = true;
+                    break;
+                }
+                
+                batch.add(documentParser.createSolrDocument(stream.next()));
+            }
+            
+            return batch;
+        } catch (IOException e) {
+            log.error("Problem reading Solr export: ", e);
+            fail();
+            return null;
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (response != null) {
+            response.close(complete);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+/**
+ * 
+ * Class FieldProfile.
+ * 
+ * The stored fields requested from Solr for each kind of view,
+ * so that large fields like the extracted text are only transferred
+ * when they are going to be rendered.
+ * 
+ * Only the profiles of the quick, id and metadata only, iterations may
+ * use the /export handler. Its response stays open, holding a connection
+ * permit of the core, until the last batch is read. Solr and Jetty close
+ * it when it idles, so iterations doing slow work per batch, like
+ * reading and zipping the files of native and image exports, use cursor
+ * paging, which requests each batch when it is needed.
+ */
+public enum FieldProfile {
+    /**
+     * Results list - the fields of the list columns, paths and tags.
+     */
+    LIST("id,unique_id,document_original_path,subject,creator,Message-From,Last-Author,Author,"
+            + "date,Creation-Date,tags-search-field", false),
+    
+    /**
+     * A single document opened for review - all stored fields.
+     */
+    DETAIL("*", false),
+    
+    /**
+     * Native and image exports.
+     */
+    EXPORT("id,document_original_path,unique_id", false),
+    
+    /**
+     * Load file export, joined to the load file by hash.
+     */
+    LOAD_FILE("id,Hash,tags-search-field", true),
+    
+    /**
+     * Tag updates which replace the whole tag list.
+     */
+    TAGS("id,tags-search-field", true),
+    
+    /**
+     * Atomic tag updates, which don't need the current tags.
+     */
+    IDS("id", true);
+    
+    private final String fields;
+    private final boolean exportHandler;
+    
+    private FieldProfile(String fields, boolean exportHandler) {
+        this.fields = fields;
+        this.exportHandler = exportHandler;
+    }
+    
+    public String getFields() {
+        return fields;
+    }
+    
+    /**
+     * @return true if the documents may be iterated with the /export handler.
+     */
+    public boolean isExportHandler() {
+        return exportHandler;
+    }
+}
@@ -17,7 +17,10 @@
 package org.freeeed.search.web.solr;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 /**
  * 
@@ -28,26 +31,86 @@ import java.util.List;
  *
  */
 public class KeywordQuerySearch implements QuerySearch {
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[\\s()\"+\\-!{}\\[\\]]+");
+    private static final int MIN_PREFIX_LENGTH = 3;
+    
     private String query;
-    private SolrSearchService solrSearchService;
-    private int from;
-    private int rows;
+    private List<String> terms;
     
-    public KeywordQuerySearch(String query, SolrSearchService solrSearchService,
-            int from, int rows) {
+    public KeywordQuerySearch(String query) {
         this.query = query;
-        this.solrSearchService = solrSearchService;
-        this.from = from;
-        this.rows = rows;
     }
     
     @Override
-    public List<String> getSearchKeywords() {
+    public List<String> getSearchKeywords(Collection<String> highlightedWords) {
         List<String> result = new ArrayList<String>();
-        result.addAll(solrSearchService.getKeywords(query, from, rows, "gl-search-field", true));
+        for (String word : highlightedWords) {
+            if (matches(word)) {
+                result.add(word);
+            }
+        }
         
         return result;
     }
+    
+    /**
+     * Check if the highlighted word comes from one of the terms of this query.
+     * Solr highlights the analyzed form, so stemmed words are matched by prefix.
+     * 
+     * @param word
+     * @return
+     */
+    private boolean matches(String word) {
+        String w = word.toLowerCase(Locale.ENGLISH);
+        for (String term : getTerms()) {
+            if (term.indexOf('*') != -1 || term.indexOf('?') != -1) {
+                String regex = Pattern.quote(term).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q");
+                if (w.matches(regex)) {
+                    return true;
+                }
+            } else if (w.equals(term)) {
+                return true;
+            } else if (Math.min(w.length(), term.length()) >= MIN_PREFIX_LENGTH
+                    && (w.startsWith(term) || term.startsWith(w))) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private synchronized List<String> getTerms() {
+        if (terms == null) {
+            terms = new ArrayList<String>();
+            for (String token : TERM_SEPARATOR.split(query)) {
+                if (token.length() == 0 || "AND".equals(token) || "OR".equals(token)
+                        || "NOT".equals(token) || "TO".equals(token)) {
+                    continue;
+                }
+                
+                //field:value - keep the value only
+                int fieldIndex = token.lastIndexOf(':');
+                if (fieldIndex != -1) {
+                    token = token.substring(fieldIndex + 1);
+                }
+                
+                //fuzzy and boost modifiers
+                int modifierIndex = token.indexOf('~');
+                if (modifierIndex == -1) {
+                    modifierIndex = token.indexOf('^');
+                }
+                if (modifierIndex != -1) {
+                    token = token.substring(0, modifierIndex);
+                }
+                
+                if (token.length() > 0) {
+                    terms.add(token.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        
+        return terms;
+    }
 
     @Override
     public String getQuery() {
@@ -55,9 +118,13 @@ public class KeywordQuerySearch implements QuerySearch {
     }
 
     @Override
-    public void adjust(int from, int rows) {
-        this.from = from;
-        this.rows = rows;
+    public boolean isFilter() {
+        return false;
+    }
+
+    @Override
+    public String getHighlightQuery() {
+        return query;
     }
 
     @Override
@@ -16,6 +16,7 @@
 */
 package org.freeeed.search.web.solr;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -30,12 +31,33 @@ import java.util.List;
  *
  */
 public interface QuerySearch {
-        
-    List<String> getSearchKeywords();
+    
+    /**
+     * Return the keywords this search is responsible for, picked
+     * from the words highlighted by Solr for the whole search.
+     * 
+     * @param highlightedWords
+     * @return
+     */
+    List<String> getSearchKeywords(Collection<String> highlightedWords);
     
     String getQuery();
     
-    String getDisplay();
+    /**
+     * True if this search only narrows down the result and does not
+     * contribute to the score. Such searches are sent as filter queries.
+     * 
+     * @return
+     */
+    boolean isFilter();
     
-    void adjust(int from, int rows);
+    /**
+     * The query used for highlighting, null if this search
+     * does not contribute to the highlighting.
+     * 
+     * @return
+     */
+    String getHighlightQuery();
+    
+    String getDisplay();
 }
@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 
+ * Class SearchQuery.
+ * 
+ * A Solr query split into the scoring part, sent as q, and
+ * the filters, sent as separate fq parameters. Filters don't
+ * affect the score and are cached by Solr independently of q.
+ */
+public class SearchQuery {
+    public static final String MATCH_ALL = "*:*";
+    
+    private final String query;
+    private final List<String> filters;
+    
+    public SearchQuery(String query) {
+        this(query, Collections.<String>emptyList());
+    }
+    
+    public SearchQuery(String query, List<String> filters) {
+        this.query = query != null && query.length() > 0 ? query : MATCH_ALL;
+        this.filters = Collections.unmodifiableList(new ArrayList<String>(filters));
+    }
+    
+    /**
+     * 
+     * A query of the exact value in the given field. The value is quoted
+     * as a phrase, so spaces and query syntax in it are kept as they are.
+     * 
+     * @param field
+     * @param value
+     * @return
+     */
+    public static String fieldValue(String field, String value) {
+        return field + ":\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+    
+    public String getQuery() {
+        return query;
+    }
+    
+    public List<String> getFilters() {
+        return filters;
+    }
+    
+    @Override
+    public String toString() {
+        return filters.isEmpty() ? query : query + " fq=" + filters;
+    }
+}
@@ -16,16 +16,13 @@
 */
 package org.freeeed.search.web.solr;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.apache.http.client.methods.HttpGet;
 import org.apache.log4j.Logger;
 import org.freeeed.search.web.configuration.Configuration;
 import org.w3c.dom.Document;
@@ -44,6 +41,7 @@ public class SolrCoreService {
     private static final Logger log = Logger.getLogger(SolrCoreService.class);
     
     private Configuration configuration;
+    private SolrHttpClient solrHttpClient;
     
     /**
      * 
@@ -95,23 +93,9 @@ public class SolrCoreService {
         try {
             String urlStr = configuration.getSolrEndpoint() + 
                                 "/solr/admin/cores?action=STATUS";            
-            URL url = new URL(urlStr);
-            
-            log.debug("Will execute: " + url.toString());
-            
-            URLConnection conn = url.openConnection();
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            
-            StringBuffer resultBuff = new StringBuffer();
-            
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                resultBuff.append(inputLine).append("\n");
-            }
-                
-            in.close();
-            
-            return resultBuff.toString();
+            log.debug("Will execute: " + urlStr);
+
+            return solrHttpClient.executeForString(null, new HttpGet(urlStr));
         } catch (Exception e) {
             log.error("Problem accessing Solr: ", e);
         }
@@ -122,4 +106,8 @@ public class SolrCoreService {
     public void setConfiguration(Configuration configuration) {
         this.configuration = configuration;
     }
+
+    public void setSolrHttpClient(SolrHttpClient solrHttpClient) {
+        this.solrHttpClient = solrHttpClient;
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.freeeed.search.web.model.solr.SolrDocument;
+
+/**
+ * 
+ * Class SolrDocumentBatchIterator.
+ * 
+ * Iterates all documents matching a query in fixed size batches.
+ * Only one batch is kept in memory at a time.
+ * 
+ * A failed Solr request ends the iteration, check hasError() after
+ * the iteration completes. The iterator releases its resources when
+ * the last batch is read, call close() when stopping earlier.
+ */
+public abstract class SolrDocumentBatchIterator implements Iterator<List<SolrDocument>> {
+    protected final String solrCore;
+    protected final int batchSize;
+    
+    private List<SolrDocument> nextBatch;
+    private boolean done;
+    private boolean error;
+    private int totalSize = -1;
+    private int processed;
+    
+    SolrDocumentBatchIterator(String solrCore, int batchSize) {
+        this.solrCore = solrCore;
+        this.batchSize = batchSize;
+        
+        if (solrCore == null) {
+            done = true;
+            error = true;
+        }
+    }
+    
+    /**
+     * Read the next batch of documents.
+     * 
+     * @return the batch, null or empty when there are no more documents.
+     */
+    protected abstract List<SolrDocument> fetchNext();
+    
+    @Override
+    public boolean hasNext() {
+        if (nextBatch == null && !done) {
+            List<SolrDocument> batch = fetchNext();
+            if (batch == null || batch.isEmpty()) {
+                done = true;
+                close();
+            } else {
+                nextBatch = batch;
+            }
+        }
+        
+        return nextBatch != null;
+    }
+
+    @Override
+    public List<SolrDocument> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        List<SolrDocument> batch = nextBatch;
+        nextBatch = null;
+        processed += batch.size();
+        
+        return batch;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Release the resources held by the iteration.
+     */
+    public void close() {
+    }
+    
+    protected void fail() {
+        error = true;
+    }
+    
+    protected void setTotalSize(int totalSize) {
+        this.totalSize = totalSize;
+    }
+    
+    /**
+     * @return true if a Solr request failed and the iteration ended early.
+     */
+    public boolean hasError() {
+        return error;
+    }
+    
+    /**
+     * @return the number of matching documents as reported by Solr, 
+     * -1 before the first batch is fetched.
+     */
+    public int getTotalSize() {
+        if (totalSize == -1 && !done && nextBatch == null) {
+            hasNext();
+        }
+        
+        return totalSize;
+    }
+    
+    /**
+     * @return the number of documents returned by next() so far.
+     */
+    public int getProcessed() {
+        return processed;
+    }
+    
+    public String getSolrCore() {
+        return solrCore;
+    }
+}
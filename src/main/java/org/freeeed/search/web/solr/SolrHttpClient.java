@@ -0,0 +1,354 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Class SolrHttpClient.
+ *
+ * Shared, pooled keep-alive HTTP transport for all Solr traffic.
+ * The number of concurrent requests is limited per Solr core, idle
+ * connections are evicted in the background.
+ */
+public class SolrHttpClient {
+    private static final Logger log = Logger.getLogger(SolrHttpClient.class);
+
+    private int maxConnectionsPerCore = 20;
+    private int maxTotalConnections = 100;
+    private int connectTimeout = 5000;
+    private int readTimeout = 60000;
+    private int connectionRequestTimeout = 30000;
+    private long keepAliveMillis = 30000;
+    private long idleTimeoutMillis = 60000;
+    private long evictionIntervalMillis = 10000;
+
+    private ThreadSafeClientConnManager connectionManager;
+    private DefaultHttpClient httpClient;
+    private Thread evictionThread;
+    private volatile boolean running;
+
+    private final Map<String, Semaphore> corePermits = new ConcurrentHashMap<String, Semaphore>();
+
+    public void init() {
+        log.info("Init Solr HTTP client...");
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxTotalConnections));
+        ConnManagerParams.setTimeout(params, connectionRequestTimeout);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new CappedKeepAliveStrategy());
+
+        running = true;
+        evictionThread = new Thread(new IdleConnectionEvictor(), "solr-http-evictor");
+        evictionThread.setDaemon(true);
+        evictionThread.start();
+    }
+
+    public void destroy() {
+        log.info("Shutting down Solr HTTP client...");
+
+        running = false;
+        if (evictionThread != null) {
+            evictionThread.interrupt();
+        }
+
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+    }
+
+    /**
+     *
+     * Execute the given request against the given Solr core.
+     * The response is passed to the handler and the connection is
+     * released back to the pool once the handler returns.
+     *
+     * @param core
+     * @param request
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    public <T> T execute(String core, HttpUriRequest request, ResponseHandler<? extends T> handler)
+            throws IOException {
+        Semaphore permits = acquire(core);
+        try {
+            return httpClient.execute(request, handler);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     *
+     * Execute the given request and keep the response open, for responses
+     * which are consumed gradually. The connection and the core permit are
+     * held until the returned response is closed.
+     *
+     * @param core
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    public StreamedResponse open(String core, HttpUriRequest request) throws IOException {
+        Semaphore permits = acquire(core);
+        try {
+            HttpResponse response = httpClient.execute(request);
+            checkStatus(response);
+
+            return new StreamedResponse(request, response.getEntity(), permits);
+        } catch (IOException e) {
+            request.abort();
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Semaphore acquire(String core) throws IOException {
+        Semaphore permits = getPermits(core);
+        try {
+            if (!permits.tryAcquire(connectionRequestTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout waiting for a connection to core: " + core);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a connection to core: " + core);
+        }
+
+        return permits;
+    }
+
+    /**
+     *
+     * Execute the given request and return the response body as string.
+     *
+     * @param core
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    public String executeForString(String core, HttpUriRequest request) throws IOException {
+        return execute(core, request, new StringResponseHandler());
+    }
+
+    private Semaphore getPermits(String core) {
+        String key = core != null ? core : "";
+        Semaphore permits = corePermits.get(key);
+        if (permits == null) {
+            synchronized (corePermits) {
+                permits = corePermits.get(key);
+                if (permits == null) {
+                    permits = new Semaphore(maxConnectionsPerCore, true);
+                    corePermits.put(key, permits);
+                }
+            }
+        }
+
+        return permits;
+    }
+
+    /**
+     *
+     * Check the response status and fail for any non 2xx response.
+     *
+     * @param response
+     * @throws IOException
+     */
+    public static void checkStatus(HttpResponse response) throws IOException {
+        StatusLine statusLine = response.getStatusLine();
+        if (statusLine.getStatusCode() >= 300) {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+
+            throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+        }
+    }
+
+    /**
+     * An open response, see open().
+     */
+    public static class StreamedResponse {
+        private final HttpUriRequest request;
+        private final HttpEntity entity;
+        private final Semaphore permits;
+        private boolean closed;
+
+        private StreamedResponse(HttpUriRequest request, HttpEntity entity, Semaphore permits) {
+            this.request = request;
+            this.entity = entity;
+            this.permits = permits;
+        }
+
+        public InputStream getContent() throws IOException {
+            if (entity == null) {
+                throw new IOException("Empty response");
+            }
+
+            return entity.getContent();
+        }
+
+        public String getCharset() {
+            return entity != null ? EntityUtils.getContentCharSet(entity) : null;
+        }
+
+        /**
+         * Release the connection. A fully read response keeps the
+         * connection alive, otherwise the connection is dropped.
+         *
+         * @param complete true if the response was read to the end.
+         */
+        public synchronized void close(boolean complete) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                if (complete && entity != null) {
+                    entity.consumeContent();
+                } else {
+                    request.abort();
+                }
+            } catch (IOException e) {
+                request.abort();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private static class StringResponseHandler implements ResponseHandler<String> {
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException {
+            checkStatus(response);
+
+            HttpEntity entity = response.getEntity();
+            return entity != null ? EntityUtils.toString(entity, "UTF-8") : null;
+        }
+    }
+
+    private class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final ConnectionKeepAliveStrategy delegate = new DefaultConnectionKeepAliveStrategy();
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = delegate.getKeepAliveDuration(response, context);
+            if (duration <= 0 || duration > keepAliveMillis) {
+                return keepAliveMillis;
+            }
+
+            return duration;
+        }
+    }
+
+    private class IdleConnectionEvictor implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(evictionIntervalMillis);
+
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    log.error("Problem evicting idle Solr connections", e);
+                }
+            }
+        }
+    }
+
+    public void setMaxConnectionsPerCore(int maxConnectionsPerCore) {
+        this.maxConnectionsPerCore = maxConnectionsPerCore;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setEvictionIntervalMillis(long evictionIntervalMillis) {
+        this.evictionIntervalMillis = evictionIntervalMillis;
+    }
+}
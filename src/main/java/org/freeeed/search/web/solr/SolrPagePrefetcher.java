@@ -0,0 +1,253 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.model.solr.SolrResult;
+import org.freeeed.search.web.session.SolrSessionObject;
+
+/**
+ * 
+ * Class SolrPagePrefetcher.
+ * 
+ * Fetches the next results page in the background, while the reviewer
+ * is still reading the current one. The page is kept in a single slot
+ * of the session and is used only if it is requested for the same
+ * searches, before it expires and before any tag update of the core.
+ * 
+ * All sessions share one bounded pool, a prefetch which does not fit
+ * in the pool is skipped.
+ */
+public class SolrPagePrefetcher {
+    private static final Logger log = Logger.getLogger(SolrPagePrefetcher.class);
+    
+    private SolrSearchService searchService;
+    private SolrResultCache resultCache;
+    
+    private boolean enabled = true;
+    private int maxThreads = 4;
+    private int queueSize = 16;
+    private long ttlMillis = 60000;
+    private long waitMillis = 10000;
+    
+    private ThreadPoolExecutor executor;
+    
+    public void init() {
+        log.info("Init Solr page prefetcher...");
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "solr-prefetch-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    public void destroy() {
+        log.info("Shutting down Solr page prefetcher...");
+        
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * 
+     * Start fetching the given page in the background. The page is
+     * requested by cursor if one is given, by offset otherwise.
+     * 
+     * @param solrSession
+     * @param query
+     * @param highlightQuery
+     * @param page
+     * @param rows
+     * @param cursorMark the cursor of the page, null to use the offset.
+     */
+    public void prefetch(SolrSessionObject solrSession, final SearchQuery query, final String highlightQuery,
+            int page, final int rows, final String cursorMark) {
+        if (!enabled) {
+            return;
+        }
+        
+        final String solrCore = searchService.getSolrCore();
+        if (solrCore == null) {
+            return;
+        }
+        
+        final int from = (page - 1) * rows;
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<SolrResult> task = new FutureTask<SolrResult>(new Callable<SolrResult>() {
+            @Override
+            public SolrResult call() throws Exception {
+                started.set(true);
+                return searchService.fetchPage(solrCore, query, highlightQuery, cursorMark, from, rows,
+                        FieldProfile.LIST);
+            }
+        });
+        
+        Slot slot = new Slot(buildKey(solrCore, query, highlightQuery, page, rows), task, started,
+                getGeneration(solrCore), solrCore);
+        solrSession.setPrefetchSlot(slot);
+        
+        try {
+            executor.execute(task);
+            log.debug("Prefetching page " + page + ": " + query);
+        } catch (RejectedExecutionException e) {
+            log.debug("Prefetch pool is full, skipping page " + page);
+            solrSession.takePrefetchSlot();
+        }
+    }
+    
+    /**
+     * 
+     * Return the prefetched page if it matches the requested one and is
+     * still valid. A prefetch which is still running is waited for, one
+     * still queued behind other work is dropped and the page is searched
+     * right away. The slot is emptied in all cases.
+     * 
+     * @param solrSession
+     * @param query
+     * @param highlightQuery
+     * @param page
+     * @param rows
+     * @return the page or null if it was not prefetched.
+     */
+    public SolrResult take(SolrSessionObject solrSession, SearchQuery query, String highlightQuery,
+            int page, int rows) {
+        Slot slot = solrSession.takePrefetchSlot();
+        if (slot == null) {
+            return null;
+        }
+        
+        if (!slot.key.equals(buildKey(slot.solrCore, query, highlightQuery, page, rows))
+                || System.currentTimeMillis() - slot.created > ttlMillis
+                || slot.generation != getGeneration(slot.solrCore)
+                || !slot.solrCore.equals(searchService.getSolrCore())) {
+            slot.cancel();
+            return null;
+        }
+        
+        if (!slot.started.get()) {
+            log.debug("Prefetch of page " + page + " not started yet, searching again");
+            slot.cancel();
+            executor.remove(slot.task);
+            return null;
+        }
+        
+        try {
+            SolrResult result = slot.task.get(waitMillis, TimeUnit.MILLISECONDS);
+            
+            //a tag update may have completed while the page was fetched
+            if (slot.generation != getGeneration(slot.solrCore)) {
+                return null;
+            }
+            
+            log.debug("Serving prefetched page " + page);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Problem prefetching page", e.getCause());
+        } catch (TimeoutException e) {
+            log.debug("Prefetch of page " + page + " too slow, searching again");
+            slot.cancel();
+        }
+        
+        return null;
+    }
+    
+    private long getGeneration(String solrCore) {
+        return resultCache != null ? resultCache.getGeneration(solrCore) : 0;
+    }
+    
+    private String buildKey(String solrCore, SearchQuery query, String highlightQuery, int page, int rows) {
+        return solrCore + "\n" + query + "\n" + highlightQuery + "\n" + page + "\n" + rows;
+    }
+    
+    /**
+     * A page being prefetched, kept in the session.
+     */
+    public static final class Slot {
+        private final String key;
+        private final FutureTask<SolrResult> task;
+        private final AtomicBoolean started;
+        private final long generation;
+        private final String solrCore;
+        private final long created = System.currentTimeMillis();
+        
+        private Slot(String key, FutureTask<SolrResult> task, AtomicBoolean started, long generation,
+                String solrCore) {
+            this.key = key;
+            this.task = task;
+            this.started = started;
+            this.generation = generation;
+            this.solrCore = solrCore;
+        }
+        
+        /**
+         * Stop the prefetch if it has not completed yet.
+         */
+        public void cancel() {
+            task.cancel(false);
+        }
+    }
+
+    public void setSearchService(SolrSearchService searchService) {
+        this.searchService = searchService;
+    }
+
+    public void setResultCache(SolrResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setWaitMillis(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.model.solr.SolrDocument;
+import org.freeeed.search.web.model.solr.SolrEntry;
+import org.freeeed.search.web.model.solr.SolrResult;
+import org.freeeed.search.web.model.solr.Tag;
+
+/**
+ * 
+ * Class SolrResultCache.
+ * 
+ * In-process LRU cache of search results, limited by total size in
+ * bytes and entry age. Entries of a core are invalidated when the
+ * documents in that core are updated.
+ */
+public class SolrResultCache {
+    private static final Logger log = Logger.getLogger(SolrResultCache.class);
+    
+    private boolean enabled = true;
+    private long maxBytes = 64L * 1024 * 1024;
+    private long maxEntryBytes = 4L * 1024 * 1024;
+    private long ttlMillis = 5 * 60 * 1000;
+    
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+    private final Map<String, Long> coreGenerations = new HashMap<String, Long>();
+    private final Map<String, Long> coreHolds = new HashMap<String, Long>();
+    private long currentBytes;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    
+    /**
+     * Return a copy of the cached result for the given key, null if missing or expired.
+     * 
+     * @param key
+     * @return
+     */
+    public SolrResult get(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.created > ttlMillis) {
+                remove(key);
+                entry = null;
+            }
+            
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            
+            hits.incrementAndGet();
+            return entry.result.clone();
+        }
+    }
+    
+    /**
+     * The current generation of the given core. Must be taken before
+     * the Solr request and passed to put, so results read before an
+     * invalidation are not stored after it.
+     * 
+     * @param core
+     * @return
+     */
+    public synchronized long getGeneration(String core) {
+        Long generation = coreGenerations.get(core);
+        return generation != null ? generation : 0;
+    }
+    
+    public void put(Key key, long generation, SolrResult result) {
+        if (!enabled || result == null) {
+            return;
+        }
+        
+        long size = estimateSize(result);
+        if (size > maxEntryBytes) {
+            return;
+        }
+        
+        SolrResult copy = result.clone();
+        
+        synchronized (this) {
+            if (generation != getGeneration(key.core)) {
+                return;
+            }
+            
+            Long holdUntil = coreHolds.get(key.core);
+            if (holdUntil != null) {
+                if (System.currentTimeMillis() < holdUntil) {
+                    return;
+                }
+                coreHolds.remove(key.core);
+            }
+            
+            remove(key);
+            
+            entries.put(key, new Entry(copy, size));
+            currentBytes += size;
+            
+            Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && i.hasNext()) {
+                Map.Entry<Key, Entry> eldest = i.next();
+                currentBytes -= eldest.getValue().size;
+                i.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Remove all cached results for the given core.
+     * 
+     * @param core
+     */
+    public void invalidate(String core) {
+        invalidate(core, 0);
+    }
+    
+    /**
+     * Remove all cached results for the given core and do not cache new
+     * ones for the given time, for changes which become visible later.
+     * 
+     * @param core
+     * @param holdMillis
+     */
+    public synchronized void invalidate(String core, long holdMillis) {
+        if (holdMillis > 0) {
+            coreHolds.put(core, System.currentTimeMillis() + holdMillis);
+        }
+        
+        coreGenerations.put(core, getGeneration(core) + 1);
+        
+        Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Entry> entry = i.next();
+            if (entry.getKey().core.equals(core)) {
+                currentBytes -= entry.getValue().size;
+                i.remove();
+            }
+        }
+        
+        invalidations.incrementAndGet();
+        log.debug("Result cache invalidated for core: " + core);
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+    
+    private void remove(Key key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            currentBytes -= old.size;
+        }
+    }
+    
+    /**
+     * Rough estimation of the memory used by the result.
+     * 
+     */
+    static long estimateSize(SolrResult result) {
+        long size = 64;
+        if (result.getDocuments() == null) {
+            return size;
+        }
+        
+        for (SolrDocument doc : result.getDocuments().values()) {
+            size += 128;
+            List<SolrEntry> docEntries = doc.getEntries();
+            if (docEntries != null) {
+                for (SolrEntry entry : docEntries) {
+                    size += 48 + 2 * (length(entry.getKey()) + length(entry.getValue()));
+                }
+            }
+            
+            List<Tag> tags = doc.getTags();
+            if (tags != null) {
+                for (Tag tag : tags) {
+                    size += 48 + 4 * length(tag.getValue());
+                }
+            }
+        }
+        
+        return size;
+    }
+    
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+    
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+    
+    public synchronized int getSize() {
+        return entries.size();
+    }
+    
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setMaxEntryBytes(long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "SolrResultCache [entries=" + entries.size() + ", bytes=" + currentBytes 
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions 
+                + ", invalidations=" + invalidations + "]";
+    }
+    
+    private static class Entry {
+        private final SolrResult result;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+        
+        Entry(SolrResult result, long size) {
+            this.result = result;
+            this.size = size;
+        }
+    }
+    
+    /**
+     * 
+     * Cache key - the core and the encoded request parameters (query, 
+     * start, rows, df, highlighting, fl, sort and cursor).
+     * 
+     */
+    public static class Key {
+        private final String core;
+        private final String params;
+        
+        public Key(String core, String params) {
+            this.core = core;
+            this.params = params;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * core.hashCode() + params.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) obj;
+            return core.equals(other.core) && params.equals(other.params);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.configuration.Configuration;
+import org.freeeed.search.web.solr.response.JsonStreamReader;
+
+/**
+ * 
+ * Class SolrSchemaService.
+ * 
+ * Reads the field definitions of a core through the schema API.
+ * The fields are cached per core and refreshed periodically.
+ */
+public class SolrSchemaService {
+    private static final Logger log = Logger.getLogger(SolrSchemaService.class);
+    
+    private Configuration configuration;
+    private SolrHttpClient solrHttpClient;
+    private long refreshMillis = 600000;
+    
+    private final Map<String, CoreFields> coreFields = new ConcurrentHashMap<String, CoreFields>();
+    
+    /**
+     * 
+     * Check if all given fields have docValues in the given core.
+     * Cores which can't be inspected are reported as having none.
+     * 
+     * @param solrCore
+     * @param fields comma separated field names.
+     * @return
+     */
+    public boolean hasDocValues(String solrCore, String fields) {
+        Set<String> docValuesFields = getDocValuesFields(solrCore);
+        for (String field : fields.split(",")) {
+            if (!docValuesFields.contains(field.trim())) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private Set<String> getDocValuesFields(String solrCore) {
+        CoreFields cached = coreFields.get(solrCore);
+        if (cached != null && System.currentTimeMillis() - cached.loaded < refreshMillis) {
+            return cached.docValues;
+        }
+        
+        Set<String> docValues = requestDocValuesFields(solrCore);
+        coreFields.put(solrCore, new CoreFields(docValues));
+        
+        return docValues;
+    }
+    
+    private Set<String> requestDocValuesFields(String solrCore) {
+        String url = configuration.getSolrEndpoint() + "/solr/" + solrCore
+                + "/schema/fields?showDefaults=true&wt=json";
+        
+        log.debug("Will execute: " + url);
+        
+        try {
+            return solrHttpClient.execute(solrCore, new HttpGet(url), new ResponseHandler<Set<String>>() {
+                @Override
+                public Set<String> handleResponse(HttpResponse response) throws IOException {
+                    SolrHttpClient.checkStatus(response);
+                    
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null) {
+                        return new HashSet<String>();
+                    }
+                    
+                    InputStream in = entity.getContent();
+                    try {
+                        String charset = EntityUtils.getContentCharSet(entity);
+                        return parseDocValuesFields(new JsonStreamReader(
+                                new InputStreamReader(in, charset != null ? charset : "UTF-8")));
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Problem reading the schema of core: " + solrCore + ", " + e.getMessage());
+            return new HashSet<String>();
+        }
+    }
+    
+    private Set<String> parseDocValuesFields(JsonStreamReader reader) throws IOException {
+        Set<String> result = new HashSet<String>();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"fields".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                boolean docValues = false;
+                
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String property = reader.nextName();
+                    if ("name".equals(property)) {
+                        name = reader.nextString();
+                    } else if ("docValues".equals(property)) {
+                        docValues = "true".equals(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                
+                if (name != null && docValues) {
+                    result.add(name);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        
+        return result;
+    }
+    
+    private static class CoreFields {
+        private final Set<String> docValues;
+        private final long loaded = System.currentTimeMillis();
+        
+        CoreFields(Set<String> docValues) {
+            this.docValues = docValues;
+        }
+    }
+
+    public void setConfiguration(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    public void setSolrHttpClient(SolrHttpClient solrHttpClient) {
+        this.solrHttpClient = solrHttpClient;
+    }
+
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+}
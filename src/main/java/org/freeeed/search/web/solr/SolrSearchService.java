@@ -16,28 +16,30 @@
 */
 package org.freeeed.search.web.solr;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.freeeed.search.web.WebConstants;
 import org.freeeed.search.web.configuration.Configuration;
 import org.freeeed.search.web.model.solr.SolrDocument;
 import org.freeeed.search.web.model.solr.SolrResult;
 import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.response.JsonSolrResponseParser;
+import org.freeeed.search.web.solr.response.SolrResponseHandler;
+import org.freeeed.search.web.solr.response.SolrResponseHandlerAdapter;
+import org.freeeed.search.web.solr.response.SolrResponseParser;
+import org.freeeed.search.web.solr.response.XmlSolrResponseParser;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
 
@@ -51,9 +53,29 @@ import java.util.*;
 public class SolrSearchService {
     private static final Logger log = Logger.getLogger(SolrSearchService.class);
     private static final String CSV_SEPARATOR = "|";
+    private static final String NEXT_CURSOR_MARK = "nextCursorMark";
+
+    /**
+     * The initial cursorMark of a deep paging iteration.
+     */
+    public static final String CURSOR_START = "*";
+
+    /**
+     * Cursors need a total order, so the uniqueKey breaks ties. Start based
+     * searches use the same order, so both kinds of paging see the same pages.
+     */
+    public static final String CURSOR_SORT = "score desc,id asc";
 
     private Configuration configuration;
     private DocumentParser solrDocumentParser;
+    private SolrHttpClient solrHttpClient;
+    private SolrResultCache resultCache;
+    private SolrSchemaService schemaService;
+    private boolean useExportHandler = true;
+
+    private final SolrResponseParser xmlResponseParser = new XmlSolrResponseParser();
+    private final SolrResponseParser jsonResponseParser = new JsonSolrResponseParser();
+    private String responseFormat = "xml";
 
     /**
      * Search in Solr for the given query.
@@ -64,7 +86,7 @@ public class SolrSearchService {
      * @return
      */
     public SolrResult search(String query, int from, int rows) {
-        return search(query, from, rows, "gl-search-field", false, null);
+        return search(new SearchQuery(query), from, rows, "gl-search-field", false, null, true);
     }
 
     /**
@@ -79,148 +101,346 @@ public class SolrSearchService {
      */
     public SolrResult search(String query, int from, int rows,
                              String defaultField, boolean highlight, String fields) {
-        log.debug("Searching: " + query);
+        return search(new SearchQuery(query), from, rows, defaultField, highlight, fields, true);
+    }
+
+    /**
+     * Search in Solr for the given query.
+     *
+     * @param query
+     * @param from
+     * @param rows
+     * @param defaultField
+     * @param highlight
+     * @param fields
+     * @param useCache false to bypass the result cache for this request.
+     * @return
+     */
+    public SolrResult search(SearchQuery query, int from, int rows, String defaultField,
+                             boolean highlight, String fields, boolean useCache) {
+        return doSearch(query, from, rows, null, defaultField, highlight ? query.getQuery() : null,
+                fields, CURSOR_SORT, useCache);
+    }
+
+    /**
+     * Search in Solr for the given query and collect the highlighted
+     * words for the highlight query within the same request.
+     *
+     * @param query
+     * @param highlightQuery the query to highlight, null for no highlighting.
+     * @param from
+     * @param rows
+     * @param profile the fields to return.
+     * @param useCache false to bypass the result cache for this request.
+     * @return
+     */
+    public SolrResult search(SearchQuery query, String highlightQuery, int from, int rows,
+                             FieldProfile profile, boolean useCache) {
+        return doSearch(query, from, rows, null, "gl-search-field", highlightQuery,
+                profile.getFields(), CURSOR_SORT, useCache);
+    }
 
-        String searchResult = searchSolr(query, from, rows, defaultField, highlight, fields);
+    /**
+     * Search one page using cursorMark deep paging. The cost of a page
+     * does not depend on how deep the page is. The cursor for the next
+     * page is returned in SolrResult.nextCursorMark.
+     *
+     * @param query
+     * @param highlightQuery the query to highlight, null for no highlighting.
+     * @param cursorMark the cursor of the page, CURSOR_START for the first one.
+     * @param rows
+     * @param profile the fields to return.
+     * @param useCache false to bypass the result cache for this request.
+     * @return
+     */
+    public SolrResult searchPage(SearchQuery query, String highlightQuery, String cursorMark,
+                                 int rows, FieldProfile profile, boolean useCache) {
+        return doSearch(query, 0, rows, cursorMark, "gl-search-field", highlightQuery,
+                profile.getFields(), CURSOR_SORT, useCache);
+    }
 
-        if (searchResult != null) {
-            Document doc = createDOM(searchResult);
-            if (doc != null) {
-                return buildResult(doc);
+    /**
+     * Load a single document with all of its stored fields, collecting
+     * the highlighted words for the highlight query.
+     *
+     * @param documentId
+     * @param highlightQuery the query to highlight, null for no highlighting.
+     * @return
+     */
+    public SolrResult getDocument(String documentId, String highlightQuery) {
+        String query = SearchQuery.fieldValue("id", documentId);
+        return doSearch(new SearchQuery(query), 0, 1, null, "gl-search-field", highlightQuery,
+                FieldProfile.DETAIL.getFields(), null, true);
+    }
+
+    /**
+     * Iterate all documents matching the query in batches of the given size,
+     * returning the fields of the profile only. Only one batch is held in memory at a time.
+     * The /export handler is used when the profile allows it and all its fields
+     * have docValues, cursor paging over /select otherwise, see FieldProfile.
+     * The Solr core is resolved when the iterator is created, so the iteration
+     * does not need the web session.
+     *
+     * @param query
+     * @param profile the fields to return.
+     * @param batchSize
+     * @return
+     */
+    public SolrDocumentBatchIterator iterate(SearchQuery query, FieldProfile profile, int batchSize) {
+        return iterate(getSolrCore(), query, profile, batchSize);
+    }
+
+    /**
+     * Iterate the documents of the given core, see iterate(SearchQuery, FieldProfile, int).
+     *
+     */
+    public SolrDocumentBatchIterator iterate(String solrCore, SearchQuery query, FieldProfile profile, int batchSize) {
+        //the export handler streams docValues, it can only be used if all fields have them
+        if (useExportHandler && profile.isExportHandler() && solrCore != null && schemaService != null
+                && schemaService.hasDocValues(solrCore, profile.getFields())) {
+            try {
+                String url = configuration.getSolrEndpoint() + "/solr/" + solrCore + "/export?"
+                        + buildParams(query, profile.getFields()) + "&wt=json";
+                return new ExportDocumentBatchIterator(solrHttpClient, solrDocumentParser, solrCore,
+                        url, batchSize);
+            } catch (UnsupportedEncodingException e) {
+                log.error("Problem encoding query: ", e);
             }
         }
 
-        return null;
+        return new CursorDocumentBatchIterator(this, solrCore, query, profile.getFields(), batchSize);
+    }
+
+    SolrResult fetchPage(String solrCore, SearchQuery query, String highlightQuery, String cursorMark,
+                         int from, int rows, FieldProfile profile) {
+        return doSearch(solrCore, query, from, rows, cursorMark, "gl-search-field", highlightQuery,
+                profile.getFields(), CURSOR_SORT, true);
     }
 
-    public Set<String> getKeywords(String query, int from, int rows, String defaultField, boolean highlight) {
-        Set<String> result = new HashSet<String>();
+    SolrResult fetchBatch(String solrCore, SearchQuery query, String cursorMark, int rows, String fields) {
+        return doSearch(solrCore, query, 0, rows, cursorMark, null, null, fields, CURSOR_SORT, false);
+    }
 
-        log.debug("Getting keywords for: " + query);
+    private SolrResult doSearch(SearchQuery query, int from, int rows, String cursorMark,
+                                String defaultField, String highlightQuery, String fields,
+                                String sort, boolean useCache) {
+        String solrCore = getSolrCore();
+        if (solrCore == null) {
+            return null;
+        }
 
-        String searchResult = searchSolr(query, from, rows, defaultField, highlight, null);
+        return doSearch(solrCore, query, from, rows, cursorMark, defaultField, highlightQuery,
+                fields, sort, useCache);
+    }
 
-        if (searchResult != null) {
-            Document doc = createDOM(searchResult);
-            if (doc != null) {
-                return getHighlight(doc);
+    private SolrResult doSearch(String solrCore, SearchQuery query, int from, int rows, String cursorMark,
+                                String defaultField, String highlightQuery, String fields,
+                                String sort, boolean useCache) {
+        log.debug("Searching: " + query);
+
+        String params;
+        try {
+            params = buildParams(query, from, rows, cursorMark, defaultField, highlightQuery, fields, sort);
+        } catch (UnsupportedEncodingException e) {
+            log.error("Problem encoding query: ", e);
+            return null;
+        }
+
+        SolrResultCache.Key cacheKey = null;
+        long cacheGeneration = 0;
+        if (useCache && resultCache != null) {
+            cacheKey = new SolrResultCache.Key(solrCore, params);
+            SolrResult cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                log.debug("Result cache hit: " + query);
+                return cached;
             }
+
+            cacheGeneration = resultCache.getGeneration(solrCore);
         }
 
-        return result;
-    }
+        final SolrResult result = new SolrResult();
+        final Map<String, SolrDocument> solrDocuments = new LinkedHashMap<String, SolrDocument>();
+        final Set<String> highlightedWords = new HashSet<String>();
 
-    private Set<String> getHighlight(Document solrDoc) {
-        Set<String> result = new HashSet<String>();
-
-        Element root = solrDoc.getDocumentElement();
-        NodeList lists = root.getElementsByTagName("lst");
-        for (int i = 0; i < lists.getLength(); i++) {
-            Element lstEl = (Element) lists.item(i);
-            String name = lstEl.getAttribute("name");
-            if (("highlighting").equals(name)) {
-                NodeList markedStrings = lstEl.getElementsByTagName("str");
-                for (int j = 0; j < markedStrings.getLength(); j++) {
-                    Element strEl = (Element) markedStrings.item(j);
-                    String str = strEl.getTextContent();
-                    int start = str.indexOf("<em>");
-                    while (start > -1) {
-                        int end = str.indexOf("</em>", start);
-                        if (end != -1) {
-                            String word = str.substring(start + 4, end);
-                            result.add(word);
-                        }
-
-                        start = str.indexOf("<em>", end);
-                    }
+        SolrResponseHandler handler = new SolrResponseHandlerAdapter() {
+            @Override
+            public void handleNumFound(long numFound) {
+                result.setTotalSize((int) numFound);
+            }
+
+            @Override
+            public void handleDocument(Map<String, List<String>> data) {
+                SolrDocument doc = solrDocumentParser.createSolrDocument(data);
+                solrDocuments.put(doc.getDocumentId(), doc);
+            }
+
+            @Override
+            public void handleHighlighting(String documentId, String field, List<String> snippets) {
+                for (String snippet : snippets) {
+                    extractHighlightedWords(snippet, highlightedWords);
                 }
             }
+
+            @Override
+            public void handleValue(String name, String value) {
+                if (NEXT_CURSOR_MARK.equals(name)) {
+                    result.setNextCursorMark(value);
+                }
+            }
+        };
+
+        if (searchSolr(solrCore, params, handler)) {
+            result.setDocuments(solrDocuments);
+            result.setHighlightedWords(highlightedWords);
+
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, cacheGeneration, result);
+            }
+
+            return result;
+        }
+
+        return null;
+    }
+
+    private void extractHighlightedWords(String str, Set<String> result) {
+        if (str == null) {
+            return;
         }
 
-        return result;
+        int start = str.indexOf("<em>");
+        while (start > -1) {
+            int end = str.indexOf("</em>", start);
+            if (end == -1) {
+                break;
+            }
+
+            result.add(str.substring(start + 4, end));
+            start = str.indexOf("<em>", end);
+        }
     }
 
     /**
-     * Parse the given DOM to SolrResult object.
+     * Build the request parameters of a select request. The
+     * parameters also identify the request in the result cache.
      *
-     * @param solrDoc
      * @return
+     * @throws UnsupportedEncodingException
      */
-    private SolrResult buildResult(Document solrDoc) {
-        SolrResult result = new SolrResult();
+    private String buildParams(SearchQuery query, int from, int rows, String cursorMark,
+                               String defaultField, String highlightQuery, String fields,
+                               String sort) throws UnsupportedEncodingException {
+        if (defaultField == null) {
+            defaultField = "gl-search-field";
+        }
 
-        NodeList responseList = solrDoc.getElementsByTagName("result");
-        Element responseEl = (Element) responseList.item(0);
-        int totalSize = Integer.parseInt(responseEl.getAttribute("numFound"));
+        StringBuilder params = new StringBuilder();
+        params.append("q=").append(URLEncoder.encode(query.getQuery(), "UTF-8"))
+                .append("&start=").append(from)
+                .append("&rows=").append(rows)
+                .append("&df=").append(defaultField)
+                .append("&hl=").append(highlightQuery != null);
 
-        result.setTotalSize(totalSize);
+        for (String filter : query.getFilters()) {
+            params.append("&fq=").append(URLEncoder.encode(filter, "UTF-8"));
+        }
 
-        NodeList documentsList = responseEl.getElementsByTagName("doc");
+        if (highlightQuery != null && !highlightQuery.equals(query.getQuery())) {
+            params.append("&hl.q=").append(URLEncoder.encode(highlightQuery, "UTF-8"));
+        }
 
-        Map<String, SolrDocument> solrDocuments = new HashMap<String, SolrDocument>();
-        for (int i = 0; i < documentsList.getLength(); i++) {
-            Element documentEl = (Element) documentsList.item(i);
+        if (fields != null) {
+            params.append("&fl=").append(fields);
+        }
 
-            Map<String, List<String>> data = new HashMap<String, List<String>>();
+        if (cursorMark != null && sort == null) {
+            sort = CURSOR_SORT;
+        }
 
-            NodeList fieldsList = documentEl.getChildNodes();
-            for (int j = 0; j < fieldsList.getLength(); j++) {
-                Element field = (Element) fieldsList.item(j);
-                String name = field.getAttribute("name");
-                List<String> value = new ArrayList<String>();
+        if (sort != null) {
+            params.append("&sort=").append(URLEncoder.encode(sort, "UTF-8"));
+        }
 
-                //multivalues
-                if (field.getNodeName().equals("arr")) {
-                    NodeList strList = field.getChildNodes();
-                    for (int k = 0; k < strList.getLength(); k++) {
-                        Node strNode = strList.item(k);
-                        value.add(strNode.getTextContent());
-                    }
-                } else {
-                    value.add(field.getTextContent());
-                }
+        if (cursorMark != null) {
+            params.append("&cursorMark=").append(URLEncoder.encode(cursorMark, "UTF-8"));
+        }
 
-                data.put(name, value);
-            }
+        return params.toString();
+    }
 
-            SolrDocument doc = solrDocumentParser.createSolrDocument(data);
-            solrDocuments.put(doc.getDocumentId(), doc);
+    /**
+     * Build the request parameters of an export request. The export
+     * handler needs a sort on docValues fields, the uniqueKey is used.
+     *
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    private String buildParams(SearchQuery query, String fields) throws UnsupportedEncodingException {
+        StringBuilder params = new StringBuilder();
+        params.append("q=").append(URLEncoder.encode(query.getQuery(), "UTF-8"));
+        for (String filter : query.getFilters()) {
+            params.append("&fq=").append(URLEncoder.encode(filter, "UTF-8"));
         }
 
-        result.setDocuments(solrDocuments);
+        params.append("&df=gl-search-field")
+                .append("&fl=").append(fields)
+                .append("&sort=").append(URLEncoder.encode("id asc", "UTF-8"));
 
-        return result;
+        return params.toString();
     }
 
     /**
-     * Create DOM element from the received string data.
+     * Do the actual HTTP requst to Solr and execute the given query.
+     * The response is parsed directly from the HTTP stream.
      *
-     * @param data
-     * @return
+     * @param solrCore
+     * @param params
+     * @param handler
+     * @return true if the request and parsing were successful.
      */
-    private Document createDOM(String data) {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        InputSource source = new InputSource(new StringReader(data));
+    private boolean searchSolr(String solrCore, String params, final SolrResponseHandler handler) {
+        final SolrResponseParser parser = getResponseParser();
+
         try {
-            return factory.newDocumentBuilder().parse(source);
+            String urlStr = configuration.getSolrEndpoint() +
+                    "/solr/" + solrCore +
+                    "/select/?" + params + "&wt=" + parser.getWriterType();
+
+            log.debug("Will execute: " + urlStr);
+
+            return solrHttpClient.execute(solrCore, new HttpGet(urlStr), new ResponseHandler<Boolean>() {
+                @Override
+                public Boolean handleResponse(HttpResponse response) throws IOException {
+                    SolrHttpClient.checkStatus(response);
+
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null) {
+                        return false;
+                    }
+
+                    InputStream in = entity.getContent();
+                    try {
+                        parser.parse(in, EntityUtils.getContentCharSet(entity), handler);
+                    } finally {
+                        in.close();
+                    }
+
+                    return true;
+                }
+            });
         } catch (Exception e) {
-            log.error("", e);
+            log.error("Problem accessing Solr: ", e);
         }
-
-        return null;
+        return false;
     }
 
     /**
-     * Do the actual HTTP requst to Solr and execute the given query.
+     * The Solr core of the case selected in the current session.
      *
-     * @param query
-     * @param from
-     * @param rows
-     * @return
+     * @return the core name or null if no case is selected.
      */
-    private String searchSolr(String query, int from, int rows,
-                              String defaultField, boolean highlight, String fields) {
-
+    String getSolrCore() {
         HttpServletRequest curRequest =
                 ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes())
                         .getRequest();
@@ -231,51 +451,38 @@ public class SolrSearchService {
             return null;
         }
 
-        String solrCore = solrSession.getSelectedCase().getSolrSourceCore();
-
-        if (defaultField == null) {
-            defaultField = "gl-search-field";
-        }
-
-        try {
-            String encodedQuery = URLEncoder.encode(query, "UTF-8");
-            String urlStr = configuration.getSolrEndpoint() +
-                    "/solr/" + solrCore +
-                    "/select/?q=" + encodedQuery + "&start=" + from +
-                    "&rows=" + rows + "&df=" + defaultField + "&hl=" + highlight;
-            if (fields != null) {
-                urlStr += "&fl=" + fields;
-            }
-
-            URL url = new URL(urlStr);
-
-            log.debug("Will execute: " + url.toString());
+        return solrSession.getSelectedCase().getSolrSourceCore();
+    }
 
-            URLConnection conn = url.openConnection();
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+    private SolrResponseParser getResponseParser() {
+        return "json".equalsIgnoreCase(responseFormat) ? jsonResponseParser : xmlResponseParser;
+    }
 
-            StringBuilder resultBuff = new StringBuilder();
+    public void setConfiguration(Configuration configuration) {
+        this.configuration = configuration;
+    }
 
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                resultBuff.append(inputLine).append("\n");
-            }
+    public void setSolrDocumentParser(DocumentParser solrDocumentParser) {
+        this.solrDocumentParser = solrDocumentParser;
+    }
 
-            in.close();
+    public void setSolrHttpClient(SolrHttpClient solrHttpClient) {
+        this.solrHttpClient = solrHttpClient;
+    }
 
-            return resultBuff.toString();
-        } catch (Exception e) {
-            log.error("Problem accessing Solr: ", e);
-        }
-        return null;
+    public void setResultCache(SolrResultCache resultCache) {
+        this.resultCache = resultCache;
     }
 
+    public void setSchemaService(SolrSchemaService schemaService) {
+        this.schemaService = schemaService;
+    }
 
-    public void setConfiguration(Configuration configuration) {
-        this.configuration = configuration;
+    public void setUseExportHandler(boolean useExportHandler) {
+        this.useExportHandler = useExportHandler;
     }
 
-    public void setSolrDocumentParser(DocumentParser solrDocumentParser) {
-        this.solrDocumentParser = solrDocumentParser;
+    public void setResponseFormat(String responseFormat) {
+        this.responseFormat = responseFormat;
     }
 }
@@ -16,11 +16,7 @@
 */
 package org.freeeed.search.web.solr;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.log4j.Logger;
 import org.freeeed.search.web.configuration.Configuration;
 import org.freeeed.search.web.dao.cases.CaseDao;
@@ -32,9 +28,18 @@ import org.freeeed.search.web.session.SessionContext;
 import org.freeeed.search.web.session.SolrSessionObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class SolrTag.
@@ -43,33 +48,46 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class SolrTagService {
     private static final Logger log = Logger.getLogger(SolrTagService.class);
+    private static final int LOCK_STRIPES = 64;
 
     private Configuration configuration;
     private SolrSearchService searchService;
     private CaseDao caseDao;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private SolrHttpClient solrHttpClient;
+    private SolrResultCache resultCache;
+    private TagUsageService tagUsageService;
+    private final TagLocks tagLocks = new TagLocks(LOCK_STRIPES);
+    private int bulkBatchSize = 1000;
+    private boolean atomicUpdates = true;
+    private boolean pipelinedUpdates = true;
+    private boolean streamedUpdates = false;
+    private int updateThreads = 4;
+
+    private ThreadPoolExecutor updateExecutor;
+
+    public void init() {
+        log.info("Init Solr tag service...");
+
+        //a bulk operation has one update in flight, when all threads are busy the caller updates itself
+        final AtomicInteger threadNumber = new AtomicInteger();
+        updateExecutor = new ThreadPoolExecutor(updateThreads, updateThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "solr-tag-update-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        updateExecutor.allowCoreThreadTimeOut(true);
+    }
 
-    public Result removeTagFromAllDocs(String tag) {
-        String query = "tags-search-field:" + tag;
-        try {
-            lock.writeLock().lock();
-            while (true) {
-                List<SolrDocument> docs = getDocumentTags(query, 0, configuration.getNumberOfRows());
-                if (docs.isEmpty()) {
-                    break;
-                }
-                updateTags(docs, tag, true);
-                String updateJson = buildUpdateJson(docs);
-                Result result = sendUpdateCommand(updateJson);
-                if (result == Result.ERROR) {
-                    return result;
-                }
-            }
-        } finally {
-            lock.writeLock().unlock();
+    public void destroy() {
+        log.info("Shutting down Solr tag service...");
+
+        if (updateExecutor != null) {
+            updateExecutor.shutdown();
         }
-        removeCaseTag(tag);
-        return Result.SUCCESS;
     }
 
     public enum Result {
@@ -85,8 +103,19 @@ public class SolrTagService {
      * @return
      */
     public Result tagDocument(String documentId, String tag) {
-        String query = "id:" + documentId;
-        return process(query, tag, 0, 1, false);
+        String solrCore = getSolrCore();
+        Result result;
+        if (atomicUpdates) {
+            result = update(solrCore, Collections.singletonList(createDocument(documentId)), tag, false, true);
+            if (result == Result.SUCCESS) {
+                updateCaseTags(getSelectedCase(), tag);
+            }
+        } else {
+            result = processDocument(documentId, tag, false);
+        }
+
+        invalidateTagCounts(solrCore);
+        return result;
     }
 
     /**
@@ -97,24 +126,38 @@ public class SolrTagService {
      * @return
      */
     public Result tagThisPageDocuments(SolrSessionObject solrSession, String tag) {
-        String query = solrSession.buildSearchQuery();
+        SearchQuery query = solrSession.buildSearchQuery();
         int from = (solrSession.getCurrentPage() - 1) * configuration.getNumberOfRows();
 
-        return process(query, tag, from, configuration.getNumberOfRows(), false);
+        Result result = process(query, tag, from, configuration.getNumberOfRows(), false);
+        invalidateTagCounts(getSolrCore());
+        return result;
     }
 
     /**
-     * Tag all documents within the current search.
+     * Run the given bulk tag job. The job carries the core and the case,
+     * so it does not need the session and can run in the background.
      *
-     * @param solrSession
-     * @param tag
+     * @param job
      * @return
      */
-    public Result tagAllDocuments(SolrSessionObject solrSession, String tag) {
-        String query = solrSession.buildSearchQuery();
-        int rows = solrSession.getTotalDocuments();
+    public Result runJob(TagJob job) {
+        Result result = updateAll(job.getSolrCore(), job.getQuery(), job.getTag(), job.isRemove(), job);
+        if (result == Result.SUCCESS && job.isRemove() && !job.isCancelled()) {
+            removeCaseTag(job.getSelectedCase(), job.getTag());
+        }
 
-        return process(query, tag, 0, rows, false);
+        return result;
+    }
+
+    /**
+     * The query of all documents having the given tag.
+     *
+     * @param tag
+     * @return
+     */
+    public static SearchQuery buildTagQuery(String tag) {
+        return new SearchQuery(SearchQuery.MATCH_ALL, Collections.singletonList(SearchQuery.fieldValue("tags-search-field", tag)));
     }
 
     /**
@@ -125,36 +168,283 @@ public class SolrTagService {
      * @return
      */
     public Result removeTag(String documentId, String tag) {
-        String query = "id:" + documentId;
-        Result result = process(query, tag, 0, 1, true);
+        String solrCore = getSolrCore();
+        Result result;
+        if (atomicUpdates) {
+            result = update(solrCore, Collections.singletonList(createDocument(documentId)), tag, true, true);
+        } else {
+            result = processDocument(documentId, tag, true);
+        }
+
+        invalidateTagCounts(solrCore);
+
+        //the tag is dropped from the case in the background, if no document has it once committed
         if (result == Result.SUCCESS) {
-            List<SolrDocument> docs = getDocumentTags("tags-search-field:" + tag, 0, 1);
-            if (docs.isEmpty()) {
-                removeCaseTag(tag);
+            tagUsageService.removed(solrCore, getSelectedCase(), tag, getCommitDelayMillis());
+        }
+        return result;
+    }
+
+    /**
+     * Add or remove the tag for all documents matching the query, one batch
+     * at a time. Atomic updates only need the ids of the documents.
+     * The progress is reported to the job, a cancelled job stops after
+     * the current batch.
+     *
+     */
+    private Result updateAll(String solrCore, SearchQuery query, String tag, boolean remove, TagJob job) {
+        if (solrCore == null) {
+            return Result.ERROR;
+        }
+
+        if (streamedUpdates && atomicUpdates) {
+            return updateAllStreamed(solrCore, query, tag, remove, job);
+        }
+
+        FieldProfile profile = atomicUpdates ? FieldProfile.IDS : FieldProfile.TAGS;
+
+        //the whole tag list is written back, concurrent changes of the core must wait
+        if (!atomicUpdates) {
+            tagLocks.lockCore(solrCore);
+        }
+
+        boolean updated = false;
+        try {
+            //one batch in memory at a time, each batch costs the same however deep it is
+            SolrDocumentBatchIterator batches = searchService.iterate(solrCore, query, profile, bulkBatchSize);
+
+            //the next batch is fetched while the previous one is being updated
+            Future<Result> pending = null;
+            int pendingSize = 0;
+            try {
+                while (batches.hasNext()) {
+                    if (job.isCancelled()) {
+                        break;
+                    }
+
+                    updated = true;
+                    List<SolrDocument> batch = batches.next();
+                    if (pending != null) {
+                        Result result = waitFor(pending);
+                        pending = null;
+                        if (result == Result.ERROR) {
+                            return result;
+                        }
+
+                        reportProgress(job, batches, pendingSize);
+                    }
+
+                    pending = startUpdate(solrCore, batch, tag, remove);
+                    pendingSize = batch.size();
+                }
+
+                if (pending != null) {
+                    Result result = waitFor(pending);
+                    pending = null;
+                    if (result == Result.ERROR) {
+                        return result;
+                    }
+
+                    reportProgress(job, batches, pendingSize);
+                }
+            } finally {
+                //the commit must follow the last update
+                if (pending != null) {
+                    waitFor(pending);
+                }
+
+                batches.close();
+
+                //a single commit for the whole operation, also for the part done before a failure
+                if (updated) {
+                    commit(solrCore);
+                    invalidateTagCounts(solrCore);
+                }
             }
+
+            if (batches.hasError()) {
+                return Result.ERROR;
+            }
+        } finally {
+            if (!atomicUpdates) {
+                tagLocks.unlockCore(solrCore);
+            }
+        }
+
+        if (!remove && updated) {
+            updateCaseTags(job.getSelectedCase(), tag);
+        }
+
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Add or remove the tag for all documents matching the query with
+     * a single update request. The ids are written to the request as
+     * they are read from Solr, none of them are kept in memory.
+     *
+     * The ids still pass through the web app. Solr's update() streaming
+     * expression would keep them in Solr, but it needs SolrCloud and sends
+     * whole documents, dropping the fields the tuples don't carry, so it
+     * can't add or remove a tag of a case core.
+     *
+     */
+    private Result updateAllStreamed(String solrCore, SearchQuery query, String tag, boolean remove, TagJob job) {
+        SolrDocumentBatchIterator batches = searchService.iterate(solrCore, query, FieldProfile.IDS, bulkBatchSize);
+        Result result;
+        try {
+            result = sendUpdateCommand(solrCore, new TagUpdateEntity(batches, job, tag, remove), true);
+        } finally {
+            batches.close();
+            invalidateTagCounts(solrCore);
+        }
+
+        //a failed read ends the request early, only part of the documents are updated
+        if (batches.hasError()) {
+            result = Result.ERROR;
         }
+
+        if (result == Result.SUCCESS && !remove && batches.getProcessed() > 0) {
+            updateCaseTags(job.getSelectedCase(), tag);
+        }
+
         return result;
     }
 
-    private Result process(String query, String tag, int from, int rows, boolean remove) {
+    /**
+     * Start the update of the given batch in the background, or run it
+     * right away if updates are not pipelined.
+     *
+     */
+    private Future<Result> startUpdate(final String solrCore, final List<SolrDocument> batch, final String tag,
+                                       final boolean remove) {
+        FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                return update(solrCore, batch, tag, remove, false);
+            }
+        });
+
+        if (pipelinedUpdates && updateExecutor != null) {
+            updateExecutor.execute(task);
+        } else {
+            task.run();
+        }
+
+        return task;
+    }
+
+    private Result waitFor(Future<Result> pending) {
         try {
-            lock.writeLock().lock();
-            List<SolrDocument> docs = getDocumentTags(query, from, rows);
-            updateTags(docs, tag, remove);
-            String updateJson = buildUpdateJson(docs);
-            return sendUpdateCommand(updateJson);
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.cancel(true);
+        } catch (ExecutionException e) {
+            log.error("Problem tagging: ", e.getCause());
+        }
+
+        return Result.ERROR;
+    }
+
+    /**
+     * With commitWithin the change shows in Solr later, the counts read
+     * before that are not kept.
+     *
+     */
+    private void invalidateTagCounts(String solrCore) {
+        tagUsageService.invalidate(solrCore, getCommitDelayMillis());
+    }
+
+    /**
+     * @return the time until an update is committed, 0 if it is committed with the request.
+     */
+    private long getCommitDelayMillis() {
+        return configuration.getCommitPolicy() == CommitPolicy.COMMIT_WITHIN ?
+                configuration.getCommitWithinMillis() : 0;
+    }
+
+    private void reportProgress(TagJob job, SolrDocumentBatchIterator batches, int processed) {
+        job.setTotal(batches.getTotalSize());
+        job.addProcessed(processed);
+    }
+
+    private Result process(SearchQuery query, String tag, int from, int rows, boolean remove) {
+        String solrCore = getSolrCore();
+        if (atomicUpdates) {
+            List<SolrDocument> docs = getDocuments(query, from, rows, FieldProfile.IDS);
+            Result result = update(solrCore, docs, tag, remove, true);
+            if (result == Result.SUCCESS && !remove) {
+                updateCaseTags(getSelectedCase(), tag);
+            }
+            return result;
+        }
+
+        tagLocks.lockCore(solrCore);
+        try {
+            return readAndUpdate(solrCore, query, tag, from, rows, remove);
         } finally {
-            lock.writeLock().unlock();
+            tagLocks.unlockCore(solrCore);
+        }
+    }
+
+    /**
+     * Read-modify-write of a single document, other documents of
+     * the core can be updated at the same time.
+     *
+     */
+    private Result processDocument(String documentId, String tag, boolean remove) {
+        String solrCore = getSolrCore();
+        tagLocks.lockDocument(solrCore, documentId);
+        try {
+            return readAndUpdate(solrCore, new SearchQuery(SearchQuery.fieldValue("id", documentId)), tag, 0, 1, remove);
+        } finally {
+            tagLocks.unlockDocument(solrCore, documentId);
+        }
+    }
+
+    private Result readAndUpdate(String solrCore, SearchQuery query, String tag, int from, int rows,
+                                 boolean remove) {
+        List<SolrDocument> docs = getDocuments(query, from, rows, FieldProfile.TAGS);
+        Result result = update(solrCore, docs, tag, remove, true);
+        if (result == Result.SUCCESS && !remove && !docs.isEmpty()) {
+            updateCaseTags(getSelectedCase(), tag);
         }
+        return result;
+    }
+
+    /**
+     * Send the tag change of the given documents to Solr.
+     *
+     */
+    private Result update(String solrCore, List<SolrDocument> docs, String tag, boolean remove, boolean last) {
+        if (docs.isEmpty()) {
+            return Result.SUCCESS;
+        }
+
+        if (atomicUpdates) {
+            return sendUpdateCommand(solrCore, new TagUpdateEntity(docs, tag, remove, true), last);
+        }
+
+        updateTags(docs, tag, remove);
+        return sendUpdateCommand(solrCore, new TagUpdateEntity(docs, tag, remove, false), last);
     }
 
-    private List<SolrDocument> getDocumentTags(String query, int from, int rows) {
-        SolrResult solrResult = searchService.search(query, from, rows, null, false, "id,tags-search-field");
-        List<SolrDocument> result = new ArrayList<SolrDocument>(solrResult.getTotalSize());
-        result.addAll(solrResult.getDocuments().values());
+    private List<SolrDocument> getDocuments(SearchQuery query, int from, int rows, FieldProfile profile) {
+        SolrResult solrResult = searchService.search(query, from, rows, null, false, profile.getFields(), false);
+        List<SolrDocument> result = new ArrayList<SolrDocument>();
+        if (solrResult != null) {
+            result.addAll(solrResult.getDocuments().values());
+        }
         return result;
     }
 
+    private SolrDocument createDocument(String documentId) {
+        SolrDocument doc = new SolrDocument();
+        doc.setDocumentId(documentId);
+        return doc;
+    }
+
     private void updateTags(List<SolrDocument> docTags, String tag, boolean remove) {
         for (SolrDocument docTag : docTags) {
             List<Tag> currentTags = docTag.getTags();
@@ -167,26 +457,28 @@ public class SolrTagService {
                     tagObj.setName(tag);
                     currentTags.add(tagObj);
                 }
-
-                updateCaseTags(tag);
             }
         }
     }
 
-    private void updateCaseTags(String tag) {
-        SolrSessionObject solrSession = SessionContext.getSolrSession();
-        if (solrSession != null && solrSession.getSelectedCase() != null) {
-            Case c = solrSession.getSelectedCase();
-            c.addTag(tag);
+    /**
+     * Register the tag in the case. Called once per tag operation, the
+     * cases are stored only if the tag is new to the case.
+     *
+     */
+    private void updateCaseTags(Case c, String tag) {
+        if (c == null) {
+            return;
+        }
+
+        tagUsageService.added(c.getSolrSourceCore(), tag);
+        if (c.addTag(tag)) {
             caseDao.saveCase(c);
         }
     }
 
-    private void removeCaseTag(String tag) {
-        SolrSessionObject solrSession = SessionContext.getSolrSession();
-        if (solrSession != null && solrSession.getSelectedCase() != null) {
-            Case c = solrSession.getSelectedCase();
-            c.removeTag(tag);
+    private void removeCaseTag(Case c, String tag) {
+        if (c != null && c.removeTag(tag)) {
             caseDao.saveCase(c);
         }
     }
@@ -211,68 +503,76 @@ public class SolrTagService {
         return false;
     }
 
-    private String buildUpdateJson(List<SolrDocument> docTags) {
-        StringBuilder result = new StringBuilder();
-        result.append("[");
-
-        for (int i = 0; i < docTags.size(); i++) {
-            SolrDocument docTag = docTags.get(i);
-
-            result.append("{\"id\" : \"");
-            result.append(docTag.getDocumentId());
-            result.append("\", \"tags-search-field\" : {\"set\" : [");
-
-            List<Tag> curTags = docTag.getTags();
-            for (int j = 0; j < curTags.size(); j++) {
-                Tag tagObj = curTags.get(j);
-                result.append("\"");
-                result.append(tagObj.getValue());
-                result.append("\"");
-
-                if (j < curTags.size() - 1) {
-                    result.append(",");
-                }
-            }
+    /**
+     * The Solr core of the case selected in the current session.
+     *
+     * @return the core name or null if no case is selected.
+     */
+    private String getSolrCore() {
+        Case c = getSelectedCase();
+        return c != null ? c.getSolrSourceCore() : null;
+    }
 
-            result.append("]}}");
+    private Case getSelectedCase() {
+        SolrSessionObject solrSession = SessionContext.getSolrSession();
+        return solrSession != null ? solrSession.getSelectedCase() : null;
+    }
 
-            if (i < docTags.size() - 1) {
-                result.append(",");
-            }
+    /**
+     * Commit the updates sent so far, according to the commit policy.
+     *
+     */
+    private Result commit(String solrCore) {
+        CommitPolicy policy = configuration.getCommitPolicy();
+        if (policy == CommitPolicy.HARD || policy == CommitPolicy.SOFT) {
+            return sendUpdateCommand(solrCore, new TagUpdateEntity(Collections.<SolrDocument>emptyList(),
+                    null, false, atomicUpdates), true);
         }
 
-        result.append("]");
+        return Result.SUCCESS;
+    }
 
-        return result.toString();
+    /**
+     * The commit parameters of an update request.
+     *
+     * @param last true if the request ends the tag operation.
+     * @return
+     */
+    private String getCommitParams(boolean last) {
+        switch (configuration.getCommitPolicy()) {
+            case SOFT:
+                return last ? "?softCommit=true" : "";
+            case COMMIT_WITHIN:
+                return "?commitWithin=" + configuration.getCommitWithinMillis();
+            default:
+                return last ? "?commit=true" : "";
+        }
     }
 
-    private Result sendUpdateCommand(String data) {
-        SolrSessionObject solrSession = SessionContext.getSolrSession();
-        if (solrSession == null || solrSession.getSelectedCase() == null) {
+    private Result sendUpdateCommand(String solrCore, TagUpdateEntity entity, boolean last) {
+        if (solrCore == null) {
             return Result.ERROR;
         }
 
-        String solrCore = solrSession.getSelectedCase().getSolrSourceCore();
-
         String url = configuration.getSolrEndpoint() + "/solr/"
-                + solrCore + "/update?commit=true";
+                + solrCore + "/update" + getCommitParams(last);
 
-        log.debug("Will send request to: " + url + ", data: " + data);
-
-        HttpClient httpClient = new DefaultHttpClient();
+        log.debug("Will send request to: " + url + ", documents: " + entity.getSize());
 
         try {
             HttpPost request = new HttpPost(url);
-            StringEntity params = new StringEntity(data);
-            params.setContentType("application/json");
-
-            request.setEntity(params);
+            request.setEntity(entity);
 
-            HttpResponse response = httpClient.execute(request);
-            response.getStatusLine().getStatusCode();
+            solrHttpClient.executeForString(solrCore, request);
         } catch (Exception ex) {
             log.error("Problem tagging: " + ex);
             return Result.ERROR;
+        } finally {
+            //even a failed update may be partially applied, with commitWithin
+            //it becomes visible later and must not be cached before that
+            CommitPolicy policy = configuration.getCommitPolicy();
+            resultCache.invalidate(solrCore, policy == CommitPolicy.COMMIT_WITHIN ?
+                    configuration.getCommitWithinMillis() : 0);
         }
 
         return Result.SUCCESS;
@@ -289,4 +589,36 @@ public class SolrTagService {
     public void setCaseDao(CaseDao caseDao) {
         this.caseDao = caseDao;
     }
+
+    public void setSolrHttpClient(SolrHttpClient solrHttpClient) {
+        this.solrHttpClient = solrHttpClient;
+    }
+
+    public void setResultCache(SolrResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public void setTagUsageService(TagUsageService tagUsageService) {
+        this.tagUsageService = tagUsageService;
+    }
+
+    public void setBulkBatchSize(int bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    public void setAtomicUpdates(boolean atomicUpdates) {
+        this.atomicUpdates = atomicUpdates;
+    }
+
+    public void setPipelinedUpdates(boolean pipelinedUpdates) {
+        this.pipelinedUpdates = pipelinedUpdates;
+    }
+
+    public void setStreamedUpdates(boolean streamedUpdates) {
+        this.streamedUpdates = streamedUpdates;
+    }
+
+    public void setUpdateThreads(int updateThreads) {
+        this.updateThreads = updateThreads;
+    }
 }
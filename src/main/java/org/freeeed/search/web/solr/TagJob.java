@@ -0,0 +1,164 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freeeed.search.web.model.Case;
+
+/**
+ * 
+ * Class TagJob.
+ * 
+ * A bulk tag operation running in the background. The job keeps
+ * everything it needs from the session, so it can complete after the
+ * request which submitted it.
+ */
+public class TagJob {
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        SUCCESS,
+        ERROR,
+        CANCELLED
+    }
+    
+    private final String id = UUID.randomUUID().toString();
+    private final String solrCore;
+    private final Case selectedCase;
+    private final SearchQuery query;
+    private final String tag;
+    private final boolean remove;
+    
+    private volatile Status status = Status.QUEUED;
+    private volatile boolean cancelled;
+    private volatile int total = -1;
+    private final AtomicInteger processed = new AtomicInteger();
+    private volatile long started;
+    private volatile long finished;
+    
+    public TagJob(String solrCore, Case selectedCase, SearchQuery query, String tag, boolean remove) {
+        this.solrCore = solrCore;
+        this.selectedCase = selectedCase;
+        this.query = query;
+        this.tag = tag;
+        this.remove = remove;
+    }
+    
+    void start() {
+        started = System.currentTimeMillis();
+        status = Status.RUNNING;
+    }
+    
+    void finish(Status status) {
+        finished = System.currentTimeMillis();
+        this.status = status;
+    }
+    
+    /**
+     * Ask the job to stop, it stops after the batch in progress.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    public boolean isDone() {
+        return finished > 0;
+    }
+    
+    void setTotal(int total) {
+        this.total = total;
+    }
+    
+    void addProcessed(int count) {
+        processed.addAndGet(count);
+    }
+    
+    /**
+     * @return the processed documents per second, 0 before the job starts.
+     */
+    public double getRate() {
+        if (started == 0) {
+            return 0;
+        }
+        
+        long end = finished > 0 ? finished : System.currentTimeMillis();
+        long elapsed = Math.max(end - started, 1);
+        return processed.get() * 1000.0 / elapsed;
+    }
+    
+    /**
+     * @return the estimated seconds until the job completes, -1 if unknown.
+     */
+    public long getEta() {
+        if (isDone()) {
+            return 0;
+        }
+        
+        double rate = getRate();
+        if (total < 0 || rate <= 0) {
+            return -1;
+        }
+        
+        return Math.round(Math.max(total - processed.get(), 0) / rate);
+    }
+    
+    public long getFinished() {
+        return finished;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSolrCore() {
+        return solrCore;
+    }
+
+    public Case getSelectedCase() {
+        return selectedCase;
+    }
+
+    public SearchQuery getQuery() {
+        return query;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public boolean isRemove() {
+        return remove;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getProcessed() {
+        return processed.get();
+    }
+}
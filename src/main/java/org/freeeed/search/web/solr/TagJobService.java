@@ -0,0 +1,316 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.dao.cases.CaseDao;
+import org.freeeed.search.web.model.Case;
+import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.SolrTagService.Result;
+
+/**
+ * 
+ * Class TagJobService.
+ * 
+ * Runs the bulk tag operations in the background on a bounded pool,
+ * so they don't block the HTTP request. The jobs can be polled for
+ * their progress and cancelled, finished jobs are kept for a while
+ * for the last poll.
+ * 
+ * The jobs are recorded in the tag journal while they run, the jobs
+ * interrupted by a shutdown or crash are resumed on startup.
+ */
+public class TagJobService {
+    private static final Logger log = Logger.getLogger(TagJobService.class);
+    
+    private SolrTagService solrTagService;
+    private CaseDao caseDao;
+    private TagJournal tagJournal;
+    
+    private int maxThreads = 2;
+    private int maxAttempts = 3;
+    private int queueSize = 32;
+    private long ttlMillis = 30 * 60 * 1000;
+    
+    private ThreadPoolExecutor executor;
+    private final Map<String, TagJob> jobs = new ConcurrentHashMap<String, TagJob>();
+    private volatile boolean shuttingDown;
+    
+    public void init() {
+        log.info("Init tag job service...");
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "tag-job-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        
+        resumeJournaledJobs();
+    }
+    
+    /**
+     * Start again the jobs left in the journal. Atomic updates can be
+     * repeated safely, documents already tagged are skipped.
+     * 
+     * The resumed job is journaled before the old entry is removed, so a
+     * crash in between resumes the job twice rather than losing it. A job
+     * which can't be submitted, the queue may be full when many jobs are
+     * resumed, keeps its old entry for the next startup.
+     */
+    private void resumeJournaledJobs() {
+        for (TagJournal.Entry entry : tagJournal.readEntries()) {
+            if (entry.getAttempts() >= maxAttempts) {
+                log.error("Giving up tag job " + entry.getId() + " after " + entry.getAttempts()
+                        + " attempts, tag: " + entry.getTag());
+                tagJournal.remove(entry.getId());
+                continue;
+            }
+            
+            Case c = caseDao.findCase(entry.getCaseId());
+            if (c == null || !entry.getSolrCore().equals(c.getSolrSourceCore())) {
+                log.warn("Dropping tag job " + entry.getId() + ", the case no longer exists");
+                tagJournal.remove(entry.getId());
+                continue;
+            }
+            
+            SearchQuery query = entry.getQuery();
+            String tagFilter = "-" + SearchQuery.fieldValue("tags-search-field", entry.getTag());
+            if (!entry.isRemove() && !query.getFilters().contains(tagFilter)) {
+                List<String> filters = new ArrayList<String>(query.getFilters());
+                filters.add(tagFilter);
+                query = new SearchQuery(query.getQuery(), filters);
+            }
+            
+            log.info("Resuming tag job " + entry.getId() + ", tag: " + entry.getTag()
+                    + ", remove: " + entry.isRemove());
+            TagJob job = submit(new TagJob(entry.getSolrCore(), c, query, entry.getTag(), entry.isRemove()),
+                    entry.getAttempts() + 1);
+            if (job != null) {
+                tagJournal.remove(entry.getId());
+            } else {
+                log.warn("Problem resuming tag job " + entry.getId() + ", it is kept for the next startup");
+            }
+        }
+    }
+    
+    public void destroy() {
+        log.info("Shutting down tag job service...");
+        
+        shuttingDown = true;
+        for (TagJob job : jobs.values()) {
+            job.cancel();
+        }
+        
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * 
+     * Tag all documents of the current search of the session.
+     * 
+     * @param solrSession
+     * @param tag
+     * @return the job or null if it can't be started.
+     */
+    public TagJob submitTagAll(SolrSessionObject solrSession, String tag) {
+        return submit(solrSession, solrSession.buildSearchQuery(), tag, false);
+    }
+    
+    /**
+     * 
+     * Remove the tag from all documents of the selected case.
+     * 
+     * @param solrSession
+     * @param tag
+     * @return the job or null if it can't be started.
+     */
+    public TagJob submitRemoveTagFromAll(SolrSessionObject solrSession, String tag) {
+        return submit(solrSession, SolrTagService.buildTagQuery(tag), tag, true);
+    }
+    
+    private TagJob submit(SolrSessionObject solrSession, SearchQuery query, String tag, boolean remove) {
+        Case c = solrSession.getSelectedCase();
+        if (c == null || c.getSolrSourceCore() == null) {
+            return null;
+        }
+        
+        return submit(new TagJob(c.getSolrSourceCore(), c, query, tag, remove), 0);
+    }
+    
+    private TagJob submit(final TagJob job, int attempts) {
+        removeExpired();
+        
+        try {
+            tagJournal.write(job, attempts);
+        } catch (IOException e) {
+            log.error("Problem journaling tag job, tag: " + job.getTag(), e);
+            return null;
+        }
+        
+        jobs.put(job.getId(), job);
+        
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(job);
+                }
+            });
+            log.debug("Tag job submitted: " + job.getId() + ", tag: " + job.getTag()
+                    + ", remove: " + job.isRemove());
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many tag jobs, rejecting tag: " + job.getTag());
+            jobs.remove(job.getId());
+            tagJournal.remove(job.getId());
+            return null;
+        }
+        
+        return job;
+    }
+    
+    private void execute(TagJob job) {
+        if (job.isCancelled()) {
+            finish(job, TagJob.Status.CANCELLED);
+            return;
+        }
+        
+        job.start();
+        
+        TagJob.Status status = TagJob.Status.ERROR;
+        try {
+            Result result = solrTagService.runJob(job);
+            if (result == Result.SUCCESS) {
+                status = job.isCancelled() ? TagJob.Status.CANCELLED : TagJob.Status.SUCCESS;
+            }
+        } catch (Exception e) {
+            log.error("Problem running tag job: " + job.getId(), e);
+        } finally {
+            finish(job, status);
+        }
+        
+        log.debug("Tag job " + job.getId() + " finished: " + status + ", documents: " + job.getProcessed());
+    }
+    
+    /**
+     * A failed job or a job stopped by the shutdown stays in the journal
+     * and is resumed on the next startup.
+     */
+    private void finish(TagJob job, TagJob.Status status) {
+        job.finish(status);
+        
+        if (status == TagJob.Status.SUCCESS || (status == TagJob.Status.CANCELLED && !shuttingDown)) {
+            tagJournal.remove(job.getId());
+        }
+    }
+    
+    /**
+     * 
+     * The job with the given id, only if it belongs to the case
+     * selected in the session.
+     * 
+     * @param solrSession
+     * @param jobId
+     * @return the job or null if not found.
+     */
+    public TagJob getJob(SolrSessionObject solrSession, String jobId) {
+        TagJob job = jobId != null ? jobs.get(jobId) : null;
+        Case c = solrSession.getSelectedCase();
+        if (job == null || c == null || !job.getSolrCore().equals(c.getSolrSourceCore())) {
+            return null;
+        }
+        
+        return job;
+    }
+    
+    /**
+     * 
+     * Cancel the given job, see getJob().
+     * 
+     * @param solrSession
+     * @param jobId
+     * @return the job or null if not found.
+     */
+    public TagJob cancel(SolrSessionObject solrSession, String jobId) {
+        TagJob job = getJob(solrSession, jobId);
+        if (job != null) {
+            job.cancel();
+        }
+        
+        return job;
+    }
+    
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        
+        Iterator<TagJob> i = jobs.values().iterator();
+        while (i.hasNext()) {
+            TagJob job = i.next();
+            if (job.isDone() && now - job.getFinished() > ttlMillis) {
+                i.remove();
+            }
+        }
+    }
+
+    public void setSolrTagService(SolrTagService solrTagService) {
+        this.solrTagService = solrTagService;
+    }
+
+    public void setCaseDao(CaseDao caseDao) {
+        this.caseDao = caseDao;
+    }
+
+    public void setTagJournal(TagJournal tagJournal) {
+        this.tagJournal = tagJournal;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 
+ * Class TagJournal.
+ * 
+ * Durable record of the bulk tag operations in progress, one file per
+ * job under work/tag-journal. An entry is written before the job starts
+ * and removed when it completes, the entries left after a crash are the
+ * operations to resume.
+ */
+public class TagJournal {
+    private static final Logger log = Logger.getLogger(TagJournal.class);
+    private static final String ENTRY_EXT = ".job";
+    private static final String TMP_EXT = ".tmp";
+    
+    private String journalDir = "work/tag-journal";
+    
+    /**
+     * 
+     * Record the given job. The entry is synced to disk before returning.
+     * 
+     * @param job
+     * @param attempts the number of times the job was started before.
+     * @throws IOException
+     */
+    public void write(TagJob job, int attempts) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("core", job.getSolrCore());
+        props.setProperty("case", String.valueOf(job.getSelectedCase().getId()));
+        props.setProperty("tag", job.getTag());
+        props.setProperty("remove", String.valueOf(job.isRemove()));
+        props.setProperty("query", job.getQuery().getQuery());
+        props.setProperty("attempts", String.valueOf(attempts));
+        
+        List<String> filters = job.getQuery().getFilters();
+        props.setProperty("filters", String.valueOf(filters.size()));
+        for (int i = 0; i < filters.size(); i++) {
+            props.setProperty("filter." + i, filters.get(i));
+        }
+        
+        File dir = new File(journalDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        
+        File tmpFile = new File(dir, job.getId() + TMP_EXT);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            props.store(out, "Tag job " + job.getId());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        
+        if (!tmpFile.renameTo(new File(dir, job.getId() + ENTRY_EXT))) {
+            tmpFile.delete();
+            throw new IOException("Problem writing journal entry: " + job.getId());
+        }
+    }
+    
+    /**
+     * 
+     * Remove the entry of the given job.
+     * 
+     * @param jobId
+     */
+    public void remove(String jobId) {
+        File file = new File(journalDir, jobId + ENTRY_EXT);
+        if (file.exists() && !file.delete()) {
+            log.error("Problem removing journal entry: " + file.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * 
+     * Read all entries in the journal. Unreadable entries and entries
+     * which were never completely written are dropped.
+     * 
+     * @return
+     */
+    public List<Entry> readEntries() {
+        List<Entry> result = new ArrayList<Entry>();
+        
+        File[] files = new File(journalDir).listFiles();
+        if (files == null) {
+            return result;
+        }
+        
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_EXT)) {
+                file.delete();
+            } else if (name.endsWith(ENTRY_EXT)) {
+                try {
+                    result.add(readEntry(name.substring(0, name.length() - ENTRY_EXT.length()), file));
+                } catch (Exception e) {
+                    log.error("Problem reading journal entry: " + file.getAbsolutePath(), e);
+                    file.delete();
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    private Entry readEntry(String id, File file) throws IOException {
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        
+        List<String> filters = new ArrayList<String>();
+        int filterCount = Integer.parseInt(props.getProperty("filters", "0"));
+        for (int i = 0; i < filterCount; i++) {
+            filters.add(props.getProperty("filter." + i));
+        }
+        
+        Entry entry = new Entry();
+        entry.id = id;
+        entry.solrCore = props.getProperty("core");
+        entry.caseId = Long.parseLong(props.getProperty("case"));
+        entry.tag = props.getProperty("tag");
+        entry.remove = Boolean.parseBoolean(props.getProperty("remove"));
+        entry.query = new SearchQuery(props.getProperty("query"), filters);
+        entry.attempts = Integer.parseInt(props.getProperty("attempts", "0"));
+        
+        if (entry.solrCore == null || entry.tag == null) {
+            throw new IOException("Incomplete journal entry");
+        }
+        
+        return entry;
+    }
+    
+    /**
+     * A tag job read from the journal.
+     */
+    public static class Entry {
+        private String id;
+        private String solrCore;
+        private long caseId;
+        private String tag;
+        private boolean remove;
+        private SearchQuery query;
+        private int attempts;
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSolrCore() {
+            return solrCore;
+        }
+
+        public long getCaseId() {
+            return caseId;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public boolean isRemove() {
+            return remove;
+        }
+
+        public SearchQuery getQuery() {
+            return query;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    public void setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+    }
+}
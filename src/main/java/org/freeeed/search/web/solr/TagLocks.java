@@ -0,0 +1,100 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 
+ * Class TagLocks.
+ * 
+ * Locks for tag updates, partitioned by Solr core. Operations on many
+ * documents lock the whole core. Single document operations share the
+ * core and lock one stripe selected by the document id, so they only
+ * wait for bulk operations and other updates of the same stripe.
+ * Different cores never wait for each other.
+ */
+public class TagLocks {
+    private final int stripes;
+    private final ConcurrentMap<String, CoreLocks> coreLocks = new ConcurrentHashMap<String, CoreLocks>();
+    
+    public TagLocks(int stripes) {
+        this.stripes = stripes;
+    }
+    
+    public void lockCore(String solrCore) {
+        getCoreLocks(solrCore).lock.writeLock().lock();
+    }
+    
+    public void unlockCore(String solrCore) {
+        getCoreLocks(solrCore).lock.writeLock().unlock();
+    }
+    
+    public void lockDocument(String solrCore, String documentId) {
+        CoreLocks locks = getCoreLocks(solrCore);
+        locks.lock.readLock().lock();
+        try {
+            locks.getStripe(documentId).lock();
+        } catch (RuntimeException e) {
+            locks.lock.readLock().unlock();
+            throw e;
+        }
+    }
+    
+    public void unlockDocument(String solrCore, String documentId) {
+        CoreLocks locks = getCoreLocks(solrCore);
+        try {
+            locks.getStripe(documentId).unlock();
+        } finally {
+            locks.lock.readLock().unlock();
+        }
+    }
+    
+    private CoreLocks getCoreLocks(String solrCore) {
+        String key = solrCore != null ? solrCore : "";
+        CoreLocks locks = coreLocks.get(key);
+        if (locks == null) {
+            CoreLocks created = new CoreLocks(stripes);
+            locks = coreLocks.putIfAbsent(key, created);
+            if (locks == null) {
+                locks = created;
+            }
+        }
+        
+        return locks;
+    }
+    
+    private static class CoreLocks {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ReentrantLock[] stripes;
+        
+        CoreLocks(int count) {
+            stripes = new ReentrantLock[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+        
+        ReentrantLock getStripe(String documentId) {
+            int hash = documentId != null ? documentId.hashCode() : 0;
+            return stripes[(hash & 0x7fffffff) % stripes.length];
+        }
+    }
+}
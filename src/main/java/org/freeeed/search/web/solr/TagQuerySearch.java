@@ -17,6 +17,7 @@
 package org.freeeed.search.web.solr;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -36,7 +37,7 @@ public class TagQuerySearch implements QuerySearch {
     }
     
     @Override
-    public List<String> getSearchKeywords() {
+    public List<String> getSearchKeywords(Collection<String> highlightedWords) {
         List<String> result = new ArrayList<String>(1);
         result.add(tag);
         
@@ -45,11 +46,17 @@ public class TagQuerySearch implements QuerySearch {
 
     @Override
     public String getQuery() {
-        return "tags-search-field:\"" + tag + "\"";
+        return SearchQuery.fieldValue("tags-search-field", tag);
     }
 
     @Override
-    public void adjust(int from, int rows) {
+    public boolean isFilter() {
+        return true;
+    }
+
+    @Override
+    public String getHighlightQuery() {
+        return null;
     }
 
     @Override
@@ -0,0 +1,313 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.freeeed.search.web.model.solr.SolrDocument;
+import org.freeeed.search.web.model.solr.Tag;
+
+/**
+ * 
+ * Class TagUpdateEntity.
+ * 
+ * The JSON body of a tag update request, written straight to the
+ * connection in chunks instead of being built as a string first.
+ * 
+ * Atomic updates add or remove the tag, otherwise the whole tag list
+ * of each document is set.
+ * 
+ * The documents are either a single batch, or all batches of an
+ * iteration, written as they are read. The iteration is not repeatable
+ * and a cancelled job ends the body after the current batch.
+ */
+public class TagUpdateEntity extends AbstractHttpEntity {
+    private final List<SolrDocument> docs;
+    private final SolrDocumentBatchIterator batches;
+    private final TagJob job;
+    private final String tag;
+    private final boolean remove;
+    private final boolean atomic;
+    private BodyStream content;
+    
+    public TagUpdateEntity(List<SolrDocument> docs, String tag, boolean remove, boolean atomic) {
+        this(docs, null, null, tag, remove, atomic);
+    }
+    
+    /**
+     * Atomic updates of all documents of the given iteration.
+     * 
+     * @param batches
+     * @param job the job to report the progress to, may be null.
+     * @param tag
+     * @param remove
+     */
+    public TagUpdateEntity(SolrDocumentBatchIterator batches, TagJob job, String tag, boolean remove) {
+        this(null, batches, job, tag, remove, true);
+    }
+    
+    private TagUpdateEntity(List<SolrDocument> docs, SolrDocumentBatchIterator batches, TagJob job,
+            String tag, boolean remove, boolean atomic) {
+        this.docs = docs;
+        this.batches = batches;
+        this.job = job;
+        this.tag = tag;
+        this.remove = remove;
+        this.atomic = atomic;
+        
+        setContentType("application/json; charset=UTF-8");
+        setChunked(true);
+    }
+    
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        BodyStream body = getBody();
+        while (body.nextChunk()) {
+            body.writeChunk(out);
+            
+            //let Solr work on the batch while the next one is read
+            out.flush();
+        }
+    }
+    
+    private void writeDocuments(Writer writer, List<SolrDocument> docs, boolean first) throws IOException {
+        for (int i = 0; i < docs.size(); i++) {
+            if (i > 0 || !first) {
+                writer.write(',');
+            }
+            
+            if (atomic) {
+                writeAtomicUpdate(writer, docs.get(i));
+            } else {
+                writeUpdate(writer, docs.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Atomic add-distinct/remove of the tag. Solr applies it to the current
+     * tags of the document, so the tags don't have to be read first.
+     * There is no _version_ constraint, a document deleted since the search
+     * must not fail the update of the others in the request.
+     * 
+     */
+    private void writeAtomicUpdate(Writer writer, SolrDocument doc) throws IOException {
+        writer.write("{\"id\":");
+        writeString(writer, doc.getDocumentId());
+        writer.write(",\"tags-search-field\":{\"");
+        writer.write(remove ? "remove" : "add-distinct");
+        writer.write("\":");
+        writeString(writer, tag);
+        writer.write("}}");
+    }
+    
+    private void writeUpdate(Writer writer, SolrDocument doc) throws IOException {
+        writer.write("{\"id\":");
+        writeString(writer, doc.getDocumentId());
+        writer.write(",\"tags-search-field\":{\"set\":[");
+        
+        List<Tag> tags = doc.getTags();
+        for (int i = 0; i < tags.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeString(writer, tags.get(i).getValue());
+        }
+        
+        writer.write("]}}");
+    }
+    
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+    
+    /**
+     * A single batch is rendered again for each call. The stream of an
+     * iteration is created once, it reads the batches as it is consumed.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return getBody();
+    }
+    
+    private BodyStream getBody() throws IOException {
+        if (docs != null) {
+            return new BodyStream();
+        }
+        
+        synchronized (this) {
+            if (content == null) {
+                content = new BodyStream();
+            }
+            return content;
+        }
+    }
+    
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+    
+    @Override
+    public boolean isRepeatable() {
+        return docs != null;
+    }
+    
+    @Override
+    public boolean isStreaming() {
+        return docs == null;
+    }
+    
+    /**
+     * The body rendered one batch at a time, the opening bracket goes
+     * with the first batch and the closing one follows the last.
+     */
+    private class BodyStream extends InputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Writer writer;
+        private byte[] chunk = new byte[0];
+        private int position;
+        private boolean first = true;
+        private boolean finished;
+        
+        BodyStream() throws IOException {
+            writer = new BufferedWriter(new OutputStreamWriter(buffer, "UTF-8"));
+        }
+        
+        /**
+         * Render the next part of the body.
+         * 
+         * @return false if the whole body has been rendered.
+         * @throws IOException
+         */
+        boolean nextChunk() throws IOException {
+            if (finished) {
+                return false;
+            }
+            
+            buffer.reset();
+            if (first) {
+                writer.write('[');
+            }
+            
+            if (docs != null) {
+                writeDocuments(writer, docs, true);
+                writer.write(']');
+                finished = true;
+            } else if (batches.hasNext() && (job == null || !job.isCancelled())) {
+                List<SolrDocument> batch = batches.next();
+                writeDocuments(writer, batch, first);
+                
+                if (job != null) {
+                    job.setTotal(batches.getTotalSize());
+                    job.addProcessed(batch.size());
+                }
+            } else {
+                writer.write(']');
+                finished = true;
+            }
+            
+            first = false;
+            writer.flush();
+            
+            chunk = buffer.toByteArray();
+            position = 0;
+            return true;
+        }
+        
+        void writeChunk(OutputStream out) throws IOException {
+            out.write(chunk, position, chunk.length - position);
+            position = chunk.length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            while (position == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            
+            return chunk[position++] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            
+            while (position == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
+        
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+    }
+    
+    /**
+     * @return the number of documents, -1 if streamed from an iteration.
+     */
+    public int getSize() {
+        return docs != null ? docs.size() : -1;
+    }
+}
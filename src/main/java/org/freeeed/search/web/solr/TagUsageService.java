@@ -0,0 +1,372 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.freeeed.search.web.configuration.Configuration;
+import org.freeeed.search.web.dao.cases.CaseDao;
+import org.freeeed.search.web.model.Case;
+import org.freeeed.search.web.solr.response.JsonStreamReader;
+
+/**
+ * 
+ * Class TagUsageService.
+ * 
+ * Number of documents per tag, for each core. The counts are read from
+ * a facet of the tags field. Tag operations mark them for reloading, they
+ * are also reloaded periodically to catch up with changes made elsewhere.
+ * 
+ * A tag removed from a document is dropped from the case by the first
+ * reload of the counts after the removal is committed, if no document
+ * has it anymore. The removal itself doesn't query Solr.
+ */
+public class TagUsageService {
+    private static final Logger log = Logger.getLogger(TagUsageService.class);
+    
+    private static final long COMMIT_MARGIN_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 60000;
+    
+    private Configuration configuration;
+    private SolrHttpClient solrHttpClient;
+    private CaseDao caseDao;
+    private long refreshMillis = 600000;
+    
+    private ScheduledExecutorService refreshExecutor;
+    private final Map<String, CoreCounts> coreCounts = new ConcurrentHashMap<String, CoreCounts>();
+    private final Map<String, Long> coreHolds = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, Map<String, Removal>> pendingRemovals =
+            new ConcurrentHashMap<String, Map<String, Removal>>();
+    
+    public void init() {
+        log.info("Init tag usage service...");
+        
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tag-usage-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public void destroy() {
+        log.info("Shutting down tag usage service...");
+        
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+    
+    /**
+     * 
+     * The number of documents of each tag of the given core.
+     * 
+     * @param solrCore
+     * @return
+     */
+    public Map<String, Integer> getCounts(String solrCore) {
+        return new HashMap<String, Integer>(getCoreCounts(solrCore).counts);
+    }
+    
+    /**
+     * 
+     * Drop the tag from the case if no document has it anymore, once the
+     * removal of the tag from a document is committed. The counts are
+     * reloaded in the background after the given delay, so the removal
+     * doesn't wait for Solr.
+     * 
+     * @param solrCore
+     * @param c
+     * @param tag
+     * @param commitMillis the time until the removal is committed, 0 if it is already.
+     */
+    public void removed(String solrCore, Case c, String tag, long commitMillis) {
+        if (solrCore == null || c == null) {
+            return;
+        }
+        
+        Map<String, Removal> removals = pendingRemovals.get(solrCore);
+        if (removals == null) {
+            pendingRemovals.putIfAbsent(solrCore, new ConcurrentHashMap<String, Removal>());
+            removals = pendingRemovals.get(solrCore);
+        }
+        
+        long delay = commitMillis > 0 ? commitMillis + COMMIT_MARGIN_MILLIS : 0;
+        removals.put(tag, new Removal(c, System.currentTimeMillis() + delay));
+        schedule(solrCore, delay);
+    }
+    
+    /**
+     * 
+     * The tag was added to documents again, it stays in the case.
+     * 
+     * @param solrCore
+     * @param tag
+     */
+    public void added(String solrCore, String tag) {
+        Map<String, Removal> removals = solrCore != null ? pendingRemovals.get(solrCore) : null;
+        if (removals != null) {
+            removals.remove(tag);
+        }
+    }
+    
+    private void schedule(final String solrCore, long delayMillis) {
+        try {
+            refreshExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        dropUnusedTags(solrCore);
+                    } catch (Exception e) {
+                        log.error("Problem dropping unused tags of core: " + solrCore, e);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Tag usage service is shut down, unused tags are kept");
+        }
+    }
+    
+    /**
+     * Drop the removed tags which are due, and no document has according
+     * to the counts loaded after that. The removals not yet due have
+     * their own check scheduled.
+     * 
+     */
+    private void dropUnusedTags(String solrCore) {
+        Map<String, Removal> removals = pendingRemovals.get(solrCore);
+        if (removals == null || removals.isEmpty()) {
+            return;
+        }
+        
+        CoreCounts counts = getCoreCounts(solrCore);
+        if (counts.failed) {
+            schedule(solrCore, RETRY_MILLIS);
+            return;
+        }
+        
+        for (Map.Entry<String, Removal> entry : removals.entrySet()) {
+            String tag = entry.getKey();
+            Removal removal = entry.getValue();
+            if (removal.due > counts.loaded || !removals.remove(tag, removal)) {
+                continue;
+            }
+            
+            if (!counts.counts.containsKey(tag) && removal.c.removeTag(tag)) {
+                log.debug("No document has tag: " + tag + " anymore, removing it from case: "
+                        + removal.c.getName());
+                caseDao.saveCase(removal.c);
+            }
+        }
+    }
+    
+    /**
+     * 
+     * Reload the counts of the core when they are needed next.
+     * 
+     * @param solrCore
+     */
+    public void invalidate(String solrCore) {
+        invalidate(solrCore, 0);
+    }
+    
+    /**
+     * 
+     * Reload the counts of the core when they are needed next, and don't
+     * keep the counts loaded in the given time. Used when the changes are
+     * committed later, counts loaded before that would be out of date.
+     * 
+     * @param solrCore
+     * @param holdMillis
+     */
+    public void invalidate(String solrCore, long holdMillis) {
+        if (solrCore != null) {
+            if (holdMillis > 0) {
+                coreHolds.put(solrCore, System.currentTimeMillis() + holdMillis);
+            }
+            coreCounts.remove(solrCore);
+        }
+    }
+    
+    private boolean isValid(CoreCounts counts) {
+        return System.currentTimeMillis() - counts.loaded < refreshMillis;
+    }
+    
+    private CoreCounts getCoreCounts(String solrCore) {
+        CoreCounts counts = coreCounts.get(solrCore);
+        if (counts != null && isValid(counts)) {
+            return counts;
+        }
+        
+        Map<String, Integer> loaded = requestCounts(solrCore);
+        if (loaded == null) {
+            return new CoreCounts(new HashMap<String, Integer>(), true);
+        }
+        counts = new CoreCounts(loaded, false);
+        
+        Long hold = coreHolds.get(solrCore);
+        if (hold == null || hold < System.currentTimeMillis()) {
+            coreHolds.remove(solrCore);
+            coreCounts.put(solrCore, counts);
+        }
+        
+        return counts;
+    }
+    
+    /**
+     * @return the counts, null if Solr can't be read.
+     */
+    private Map<String, Integer> requestCounts(String solrCore) {
+        String url = configuration.getSolrEndpoint() + "/solr/" + solrCore
+                + "/select?q=*:*&rows=0&facet=true&facet.field=tags-search-field"
+                + "&facet.limit=-1&facet.mincount=1&wt=json";
+        
+        log.debug("Will execute: " + url);
+        
+        try {
+            return solrHttpClient.execute(solrCore, new HttpGet(url), new ResponseHandler<Map<String, Integer>>() {
+                @Override
+                public Map<String, Integer> handleResponse(HttpResponse response) throws IOException {
+                    SolrHttpClient.checkStatus(response);
+                    
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null) {
+                        return new HashMap<String, Integer>();
+                    }
+                    
+                    InputStream in = entity.getContent();
+                    try {
+                        String charset = EntityUtils.getContentCharSet(entity);
+                        return parseCounts(new JsonStreamReader(
+                                new InputStreamReader(in, charset != null ? charset : "UTF-8")));
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Problem reading the tag counts of core: " + solrCore + ", " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Read facet_counts.facet_fields.tags-search-field, a flat array of
+     * tag and count pairs.
+     * 
+     */
+    private Map<String, Integer> parseCounts(JsonStreamReader reader) throws IOException {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"facet_counts".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"facet_fields".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"tags-search-field".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String tag = reader.nextString();
+                        int count = Integer.parseInt(reader.nextString());
+                        result.put(tag, count);
+                    }
+                    reader.endArray();
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        
+        return result;
+    }
+    
+    private static class CoreCounts {
+        private final Map<String, Integer> counts;
+        private final boolean failed;
+        private final long loaded = System.currentTimeMillis();
+        
+        CoreCounts(Map<String, Integer> counts, boolean failed) {
+            this.counts = counts;
+            this.failed = failed;
+        }
+    }
+    
+    /**
+     * A tag removed from a document, checked once the counts loaded
+     * after the due time.
+     */
+    private static class Removal {
+        private final Case c;
+        private final long due;
+        
+        Removal(Case c, long due) {
+            this.c = c;
+            this.due = due;
+        }
+    }
+
+    public void setCaseDao(CaseDao caseDao) {
+        this.caseDao = caseDao;
+    }
+
+    public void setConfiguration(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    public void setSolrHttpClient(SolrHttpClient solrHttpClient) {
+        this.solrHttpClient = solrHttpClient;
+    }
+
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 
+ * Class JsonDocumentStream.
+ * 
+ * Pull reader for the documents of a wt=json Solr response, as written
+ * by the /export handler. Documents are read one at a time, on demand,
+ * so the response can be consumed at the pace of the caller.
+ */
+public class JsonDocumentStream {
+    private final JsonStreamReader reader;
+    private long numFound = -1;
+    private boolean inDocs;
+    private boolean finished;
+    
+    public JsonDocumentStream(InputStream in, String charset) throws IOException {
+        reader = new JsonStreamReader(new InputStreamReader(in, charset != null ? charset : "UTF-8"));
+    }
+    
+    /**
+     * @return true if there is one more document in the response.
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        if (finished) {
+            return false;
+        }
+        
+        if (!inDocs) {
+            moveToDocs();
+            if (finished) {
+                return false;
+            }
+        }
+        
+        if (reader.hasNext()) {
+            return true;
+        }
+        
+        reader.endArray();
+        finished = true;
+        
+        return false;
+    }
+    
+    /**
+     * Read the next document. The export handler reports failures that
+     * happen after the response started as a document with an EXCEPTION field.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public Map<String, List<String>> next() throws IOException {
+        if (!hasNext()) {
+            throw new IOException("No more documents");
+        }
+        
+        Map<String, List<String>> doc = JsonSolrResponseParser.parseDocument(reader);
+        List<String> exception = doc.get("EXCEPTION");
+        if (exception != null) {
+            finished = true;
+            throw new IOException("Solr export failed: " + exception);
+        }
+        
+        return doc;
+    }
+    
+    /**
+     * @return the number of documents reported before the documents, -1 if unknown.
+     */
+    public long getNumFound() throws IOException {
+        if (!inDocs && !finished) {
+            moveToDocs();
+        }
+        
+        return numFound;
+    }
+    
+    public void close() throws IOException {
+        reader.close();
+    }
+    
+    private void moveToDocs() throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!"response".equals(name)) {
+                reader.skipValue();
+                continue;
+            }
+            
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if ("numFound".equals(field)) {
+                    numFound = Long.parseLong(reader.nextString());
+                } else if ("docs".equals(field)) {
+                    reader.beginArray();
+                    inDocs = true;
+                    return;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        
+        finished = true;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 
+ * Class JsonSolrResponseParser.
+ * 
+ * Streaming parser for wt=json Solr responses. Documents are
+ * passed to the handler one by one while the stream is read.
+ */
+public class JsonSolrResponseParser implements SolrResponseParser {
+
+    @Override
+    public String getWriterType() {
+        return "json";
+    }
+
+    @Override
+    public void parse(InputStream in, String charset, SolrResponseHandler handler) throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(
+                new InputStreamReader(in, charset != null ? charset : "UTF-8"));
+        
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                
+                if ("response".equals(name)) {
+                    parseResponse(reader, handler);
+                } else if ("highlighting".equals(name)) {
+                    parseHighlighting(reader, handler);
+                } else if (isScalar(reader)) {
+                    handler.handleValue(name, reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private void parseResponse(JsonStreamReader reader, SolrResponseHandler handler) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            
+            if ("numFound".equals(name)) {
+                handler.handleNumFound(Long.parseLong(reader.nextString()));
+            } else if ("docs".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    handler.handleDocument(parseDocument(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+    
+    static Map<String, List<String>> parseDocument(JsonStreamReader reader) throws IOException {
+        Map<String, List<String>> data = new HashMap<String, List<String>>();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonStreamReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+            } else {
+                data.put(name, parseValues(reader));
+            }
+        }
+        reader.endObject();
+        
+        return data;
+    }
+    
+    private void parseHighlighting(JsonStreamReader reader, SolrResponseHandler handler) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String documentId = reader.nextName();
+            
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                handler.handleHighlighting(documentId, field, parseValues(reader));
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+    
+    /**
+     * Read a single value or all values of an array.
+     * 
+     */
+    private static List<String> parseValues(JsonStreamReader reader) throws IOException {
+        List<String> values = new ArrayList<String>(1);
+        if (reader.peek() == JsonStreamReader.Token.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (isScalar(reader)) {
+                    values.add(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        } else {
+            values.add(reader.nextString());
+        }
+        
+        return values;
+    }
+    
+    private static boolean isScalar(JsonStreamReader reader) throws IOException {
+        JsonStreamReader.Token token = reader.peek();
+        return token == JsonStreamReader.Token.STRING || token == JsonStreamReader.Token.LITERAL;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * 
+ * Class JsonStreamReader.
+ * 
+ * Minimal pull reader for JSON streams. Only the current token is
+ * kept in memory. Separators are consumed by hasNext(), so each value
+ * of an object or array has to be preceded by a hasNext() call.
+ */
+public class JsonStreamReader {
+    
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        STRING,
+        LITERAL,
+        END_DOCUMENT
+    }
+    
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    
+    private Token peeked;
+    private String peekedValue;
+    private final StringBuilder text = new StringBuilder();
+    
+    public JsonStreamReader(Reader in) {
+        this.in = in;
+    }
+    
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            readToken();
+        }
+        
+        return peeked;
+    }
+    
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+    }
+    
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+    }
+    
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+    }
+    
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+    }
+    
+    /**
+     * Check if the current object or array has more elements.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+    
+    public String nextName() throws IOException {
+        String name = nextString();
+        int c = nextNonWhitespace();
+        if (c != ':') {
+            throw syntaxError("Expected ':'");
+        }
+        
+        return name;
+    }
+    
+    /**
+     * Return the next scalar value as string. Numbers and
+     * booleans are returned in their JSON form, null as null.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token != Token.STRING && token != Token.LITERAL) {
+            throw syntaxError("Expected a value but was " + token);
+        }
+        
+        String value = peekedValue;
+        peeked = null;
+        peekedValue = null;
+        
+        return token == Token.LITERAL && "null".equals(value) ? null : value;
+    }
+    
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token token = peek();
+            if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY) {
+                depth++;
+            } else if (token == Token.END_OBJECT || token == Token.END_ARRAY) {
+                depth--;
+            } else if (token == Token.END_DOCUMENT) {
+                throw syntaxError("Unexpected end of document");
+            }
+            
+            peeked = null;
+            peekedValue = null;
+            
+            //names are followed by ':' inside objects
+            if (token == Token.STRING && depth > 0) {
+                int c = nextNonWhitespace();
+                if (c != ':' && c != -1) {
+                    pos--;
+                }
+            }
+        } while (depth > 0);
+    }
+    
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        
+        peeked = null;
+    }
+    
+    private void readToken() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == ',') {
+            c = nextNonWhitespace();
+        }
+        
+        switch (c) {
+            case -1:
+                peeked = Token.END_DOCUMENT;
+                break;
+            case '{':
+                peeked = Token.BEGIN_OBJECT;
+                break;
+            case '}':
+                peeked = Token.END_OBJECT;
+                break;
+            case '[':
+                peeked = Token.BEGIN_ARRAY;
+                break;
+            case ']':
+                peeked = Token.END_ARRAY;
+                break;
+            case '"':
+                peekedValue = readString();
+                peeked = Token.STRING;
+                break;
+            default:
+                pos--;
+                peekedValue = readLiteral();
+                peeked = Token.LITERAL;
+        }
+    }
+    
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            
+            if (c == '"') {
+                return text.toString();
+            }
+            
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit == -1) {
+                                throw syntaxError("Invalid unicode escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        text.append((char) code);
+                        break;
+                    case -1:
+                        throw syntaxError("Unterminated escape");
+                    default:
+                        text.append((char) c);
+                }
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+    
+    private String readLiteral() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                break;
+            }
+            
+            if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c)) {
+                pos--;
+                break;
+            }
+            
+            text.append((char) c);
+        }
+        
+        if (text.length() == 0) {
+            throw syntaxError("Unexpected character");
+        }
+        
+        return text.toString();
+    }
+    
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        
+        return c;
+    }
+    
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        
+        return buffer[pos++];
+    }
+    
+    private IOException syntaxError(String message) {
+        return new IOException("Invalid JSON: " + message);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 
+ * Interface SolrResponseHandler.
+ * 
+ * Receives the parts of a Solr response as they are read
+ * from the stream, so the whole response never has to be kept in memory.
+ */
+public interface SolrResponseHandler {
+    
+    void handleNumFound(long numFound);
+    
+    void handleDocument(Map<String, List<String>> fields);
+    
+    void handleHighlighting(String documentId, String field, List<String> snippets);
+    
+    void handleValue(String name, String value);
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 
+ * Class SolrResponseHandlerAdapter.
+ * 
+ * Empty implementation of SolrResponseHandler, override only what is needed.
+ */
+public abstract class SolrResponseHandlerAdapter implements SolrResponseHandler {
+
+    @Override
+    public void handleNumFound(long numFound) {
+    }
+
+    @Override
+    public void handleDocument(Map<String, List<String>> fields) {
+    }
+
+    @Override
+    public void handleHighlighting(String documentId, String field, List<String> snippets) {
+    }
+
+    @Override
+    public void handleValue(String name, String value) {
+    }
+}
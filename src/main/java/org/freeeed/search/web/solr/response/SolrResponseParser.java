@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 
+ * Interface SolrResponseParser.
+ * 
+ * Parse a Solr response directly from the HTTP input stream.
+ */
+public interface SolrResponseParser {
+    
+    /**
+     * The value of the Solr wt parameter this parser understands.
+     * 
+     * @return
+     */
+    String getWriterType();
+    
+    void parse(InputStream in, String charset, SolrResponseHandler handler) throws IOException;
+}
@@ -0,0 +1,174 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * 
+ * Class XmlSolrResponseParser.
+ * 
+ * StAX based parser for wt=xml Solr responses. Documents are
+ * passed to the handler one by one while the stream is read.
+ */
+public class XmlSolrResponseParser implements SolrResponseParser {
+    private final XMLInputFactory factory;
+    
+    public XmlSolrResponseParser() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+    
+    @Override
+    public String getWriterType() {
+        return "xml";
+    }
+
+    @Override
+    public void parse(InputStream in, String charset, SolrResponseHandler handler) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = charset != null ? factory.createXMLStreamReader(in, charset) 
+                    : factory.createXMLStreamReader(in);
+            
+            //move to the <response> element
+            reader.nextTag();
+            
+            while (nextChild(reader)) {
+                String element = reader.getLocalName();
+                String name = reader.getAttributeValue(null, "name");
+                
+                if ("result".equals(element)) {
+                    parseResult(reader, handler);
+                } else if ("lst".equals(element) && "highlighting".equals(name)) {
+                    parseHighlighting(reader, handler);
+                } else if ("lst".equals(element) || "arr".equals(element)) {
+                    skipElement(reader);
+                } else {
+                    handler.handleValue(name, reader.getElementText());
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Problem parsing Solr response", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                }
+            }
+        }
+    }
+    
+    private void parseResult(XMLStreamReader reader, SolrResponseHandler handler) throws XMLStreamException {
+        String numFound = reader.getAttributeValue(null, "numFound");
+        if (numFound != null) {
+            handler.handleNumFound(Long.parseLong(numFound));
+        }
+        
+        while (nextChild(reader)) {
+            if ("doc".equals(reader.getLocalName())) {
+                handler.handleDocument(parseDocument(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+    
+    private Map<String, List<String>> parseDocument(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, List<String>> data = new HashMap<String, List<String>>();
+        
+        while (nextChild(reader)) {
+            String name = reader.getAttributeValue(null, "name");
+            data.put(name, parseValues(reader));
+        }
+        
+        return data;
+    }
+    
+    private void parseHighlighting(XMLStreamReader reader, SolrResponseHandler handler) throws XMLStreamException {
+        while (nextChild(reader)) {
+            String documentId = reader.getAttributeValue(null, "name");
+            while (nextChild(reader)) {
+                String field = reader.getAttributeValue(null, "name");
+                handler.handleHighlighting(documentId, field, parseValues(reader));
+            }
+        }
+    }
+    
+    /**
+     * Read the values of the current element - a single value 
+     * or all values of a multivalued (arr) element.
+     * 
+     */
+    private List<String> parseValues(XMLStreamReader reader) throws XMLStreamException {
+        List<String> values = new ArrayList<String>(1);
+        if ("arr".equals(reader.getLocalName())) {
+            while (nextChild(reader)) {
+                values.add(reader.getElementText());
+            }
+        } else {
+            values.add(reader.getElementText());
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Move to the next child element of the current element.
+     * 
+     * @return false when the end of the current element is reached.
+     */
+    private boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        
+        return false;
+    }
+    
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
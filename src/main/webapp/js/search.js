@@ -1,6 +1,8 @@
 var lastDocId = null;
 var documentsMap = new Object();
 var allTags = new Object();
+var tagCounts = new Object();
+var loadedDocs = new Object();
 
 function selectDocument(docId) {
     if (docId == lastDocId) {
@@ -16,9 +18,31 @@ function selectDocument(docId) {
     }
 
     lastDocId = docId;
+
+    loadDocument(docId);
+}
+
+function loadDocument(docId) {
+    if (loadedDocs[docId] != null) {
+        return;
+    }
+
+    $.ajax({
+        type: 'GET',
+        url: 'dosearch.html',
+        data: {action: 'document', id: docId},
+        success: function (data) {
+            loadedDocs[docId] = 1;
+            $("#entries-" + docId).html(data);
+        },
+        error: function () {
+            alert("Technical error, try that again in a few moments!");
+        }
+    });
 }
 
 function initPage(docId) {
+    loadedDocs = new Object();
     selectDocument(docId);
     initTags();
 }
@@ -110,7 +134,129 @@ function deleteTagFromAllDocs(tag) {
         url: 'tag.html',
         data: {action: 'deletetagfromall', tag: tag},
         success: function (data) {
-            location.reload();
+            startTagJob(data, "Removing tag " + tag, function () {
+                location.reload();
+            });
+        },
+        error: function () {
+            alert("Technical error, try that again in a few moments!");
+        }
+    });
+}
+
+var tagJob = null;
+
+//the bulk tag operations run in the background, poll their progress until done
+function startTagJob(data, label, onDone) {
+    if (data == 'ERROR') {
+        alert("Too many tag operations are running, try that again in a few moments!");
+        return;
+    }
+
+    var job = $.parseJSON(data);
+    tagJob = {id: job.job, label: label, onDone: onDone};
+    showTagJob(job);
+    setTimeout(pollTagJob, 1000);
+}
+
+function pollTagJob() {
+    if (tagJob == null) {
+        return;
+    }
+
+    var current = tagJob;
+    $.ajax({
+        type: 'GET',
+        url: 'tag.html',
+        data: {action: 'jobstatus', job: current.id},
+        cache: false,
+        success: function (data) {
+            if (data == 'ERROR') {
+                finishTagJob(current);
+                return;
+            }
+
+            var job = $.parseJSON(data);
+            showTagJob(job);
+
+            if (job.status == 'SUCCESS') {
+                finishTagJob(current);
+                current.onDone();
+            } else if (job.status == 'ERROR') {
+                finishTagJob(current);
+                alert("Technical error, try that again in a few moments!");
+            } else if (job.status == 'CANCELLED') {
+                finishTagJob(current);
+            } else {
+                setTimeout(pollTagJob, 1000);
+            }
+        },
+        error: function () {
+            setTimeout(pollTagJob, 5000);
+        }
+    });
+}
+
+function showTagJob(job) {
+    var text = tagJob.label + ": " + job.processed;
+    if (job.total >= 0) {
+        text += " of " + job.total;
+    }
+    text += " documents";
+    if (job.rate > 0) {
+        text += ", " + job.rate + " per second";
+    }
+    if (job.eta >= 0 && job.status == 'RUNNING') {
+        text += ", " + job.eta + " seconds left";
+    }
+
+    $("#tag-job-text").html(text);
+    $("#tag-job").show();
+}
+
+function finishTagJob(job) {
+    if (tagJob == job) {
+        tagJob = null;
+        $("#tag-job").hide();
+    }
+}
+
+function cancelTagJob() {
+    if (tagJob == null) {
+        return;
+    }
+
+    $.ajax({
+        type: 'POST',
+        url: 'tag.html',
+        data: {action: 'canceljob', job: tagJob.id}
+    });
+}
+
+var exportJob = null;
+
+//the exports are built in the background, poll their progress and download the zip when ready
+function startExport(action, label) {
+    if (exportJob != null) {
+        alert("An export is already running, wait for it to finish or cancel it!");
+        return;
+    }
+
+    $.ajax({
+        type: 'POST',
+        url: 'filedownload.html',
+        data: {action: action},
+        cache: false,
+        success: function (data) {
+            if (data == 'ERROR') {
+                alert("Too many exports are running, try that again in a few moments!");
+                return;
+            }
+
+            var job = $.parseJSON(data);
+            exportJob = {id: job.job, label: label};
+            showExportJob(job);
+            setTimeout(pollExportJob, 1000);
         },
         error: function () {
             alert("Technical error, try that again in a few moments!");
@@ -118,6 +264,77 @@ function deleteTagFromAllDocs(tag) {
     });
 }
 
+function pollExportJob() {
+    if (exportJob == null) {
+        return;
+    }
+
+    var current = exportJob;
+    $.ajax({
+        type: 'GET',
+        url: 'filedownload.html',
+        data: {action: 'exportstatus', job: current.id},
+        cache: false,
+        success: function (data) {
+            if (data == 'ERROR') {
+                finishExportJob(current);
+                return;
+            }
+
+            var job = $.parseJSON(data);
+            showExportJob(job);
+
+            if (job.status == 'SUCCESS') {
+                finishExportJob(current);
+                window.location = 'filedownload.html?action=exportdownload&job=' + current.id;
+            } else if (job.status == 'ERROR') {
+                finishExportJob(current);
+                alert("Technical error, try that again in a few moments!");
+            } else if (job.status == 'CANCELLED' || job.status == 'EXPIRED') {
+                finishExportJob(current);
+            } else {
+                setTimeout(pollExportJob, 1000);
+            }
+        },
+        error: function () {
+            setTimeout(pollExportJob, 5000);
+        }
+    });
+}
+
+function showExportJob(job) {
+    var text = exportJob.label + ": " + job.processed;
+    if (job.total >= 0) {
+        text += " of " + job.total;
+    }
+    text += " documents";
+    if (job.eta >= 0 && job.status == 'RUNNING') {
+        text += ", " + job.eta + " seconds left";
+    }
+
+    $("#export-job-text").html(text);
+    $("#export-job").show();
+}
+
+function finishExportJob(job) {
+    if (exportJob == job) {
+        exportJob = null;
+        $("#export-job").hide();
+    }
+}
+
+function cancelExportJob() {
+    if (exportJob == null) {
+        return;
+    }
+
+    $.ajax({
+        type: 'POST',
+        url: 'filedownload.html',
+        data: {action: 'exportcancel', job: exportJob.id}
+    });
+}
+
 function search() {
     var queryStr = $("#search-query").val();
 
@@ -275,7 +492,29 @@ function newAllTagEnter(callFunc, e) {
 }
 
 function tagAll() {
-    tagDocuments("tag-all-text", "tag-all", "tagall");
+    var tag = $("#tag-all-text").val();
+    if (tag == null || tag.length == 0) {
+        return;
+    }
+
+    $.ajax({
+        type: 'POST',
+        url: 'tag.html',
+        data: {action: 'tagall', tag: tag},
+        success: function (data) {
+            $("#tag-all").hide();
+            $("#tag-all-text").val('');
+
+            startTagJob(data, "Tagging " + tag, function () {
+                for (var docId in documentsMap) {
+                    displayTag(docId, tag);
+                }
+            });
+        },
+        error: function () {
+            alert("Technical error, try that again in a few moments!");
+        }
+    });
 }
 
 function tagPage() {
@@ -318,7 +557,8 @@ function addCaseTag(tag) {
 }
 
 function appendCaseTag(tag) {
-    $(".case-tags-box-body").append("<div class='tag-table'><div id='" + tag + "' class='case-tags-box-row' onclick='addTagToSearch(\"" + tag + "\")'>" + tag + "</div><div><a href='#' onclick='deleteTagFromAllDocs(\"" + tag + "\")'><img src='images/delete.gif'/></a></div></div>");
+    var label = tagCounts[tag] != null ? tag + " (" + tagCounts[tag] + ")" : tag;
+    $(".case-tags-box-body").append("<div class='tag-table'><div id='" + tag + "' class='case-tags-box-row' onclick='addTagToSearch(\"" + tag + "\")'>" + label + "</div><div><a href='#' onclick='deleteTagFromAllDocs(\"" + tag + "\")'><img src='images/delete.gif'/></a></div></div>");
 }
 
 $(document).ready(function () {
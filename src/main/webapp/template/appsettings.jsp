@@ -33,6 +33,20 @@
             <td>Solr endpoint URL*: </td>
             <td><input type="text" name="solr_endpoint" value="${appSettings.solrEndpoint}"/></td>
           </tr>
+          <tr>
+            <td>Tag commit policy: </td>
+            <td>
+              <select name="commit_policy">
+                <c:forEach var="policy" items="${commitPolicies}">
+                  <option value="${policy.name}" <c:if test="${policy.name == commitPolicy}">selected</c:if>>${policy.display}</option>
+                </c:forEach>
+              </select>
+            </td>
+          </tr>
+          <tr>
+            <td>Commit within (ms): </td>
+            <td><input type="text" name="commit_within" value="${appSettings.commitWithinMillis > 0 ? appSettings.commitWithinMillis : 1000}"/></td>
+          </tr>
           <tr>
             <td colspan="2">
               &nbsp;
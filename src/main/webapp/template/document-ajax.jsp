@@ -0,0 +1,36 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
+<%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions" %>
+
+<c:if test="${doc != null}">
+<table border = 0>
+    <c:forEach var="entry" items="${doc.entries}">
+        <tr>
+          <c:choose>
+            <c:when test="${entry.key != 'text'}">
+              <td class="result-box-key">${entry.key}</td>
+              <td><div class="result-box-value">${entry.value}</div></td>
+            </c:when>
+            <c:otherwise>
+                <td colspan=2 class="result-box-text">
+                  <c:choose>
+                    <c:when test="${fn:length(entry.value) > 300}">
+                      <div id="textid-txt-${doc.documentId}" class="result-box-text-container">
+                        ${entry.value}
+                      </div>
+                      <div id="textid-coll-${doc.documentId}" class="result-box-text-collapse">
+                        The text has been truncated. Click <a href="#" onclick="document.getElementById('textid-coll-${doc.documentId}').style.display='none';document.getElementById('textid-txt-${doc.documentId}').className=' ';return false;">here</a> to see it complete.
+                      </div>
+                    </c:when>
+                    <c:otherwise>
+                      <div>
+                        ${entry.value}
+                      </div>
+                    </c:otherwise>
+                  </c:choose>
+                </td>
+            </c:otherwise>
+          </c:choose>
+        </tr>
+    </c:forEach>
+</table>
+</c:if>
@@ -51,10 +51,10 @@
                     <a href="javascript:" class="operation-link-text" onclick="tagPageBox()">Tag This page</a>
                 </div>
                 <div class="operation-link">
-                    <a class="operation-link-text" href="filedownload.html?action=exportImageAll">Export as images</a>
+                    <a href="javascript:" class="operation-link-text" onclick="startExport('exportImageAll', 'Exporting images')">Export as images</a>
                 </div>
                 <div class="operation-link">
-                    <a class="operation-link-text" href="filedownload.html?action=exportNativeAll">Export as native</a>
+                    <a href="javascript:" class="operation-link-text" onclick="startExport('exportNativeAll', 'Exporting natives')">Export as native</a>
                 </div>
                 <div class="operation-link">
                     <a class="operation-link-text" href="filedownload.html?action=exportLoadFile">Export Load File</a>
@@ -151,37 +151,8 @@
                 <input type="button" value="Cancel" onclick="document.getElementById('tag-doc-${doc.documentId}').style.display='none';return false;"/>
             </div>
             
-            <table border = 0>
-                <c:forEach var="entry" items="${doc.entries}">
-                    <tr>
-                      <c:choose>
-                        <c:when test="${entry.key != 'text'}">
-                          <td class="result-box-key">${entry.key}</td>
-                          <td><div class="result-box-value">${entry.value}</div></td>
-                        </c:when>
-                        <c:otherwise>
-                            <td colspan=2 class="result-box-text">
-                              <c:choose>
-                                <c:when test="${fn:length(entry.value) > 300}">
-                                  <div id="textid-txt-${doc.documentId}" class="result-box-text-container">
-                                    ${entry.value}
-                                  </div>
-                                  <div id="textid-coll-${doc.documentId}" class="result-box-text-collapse">
-                                    The text has been truncated. Click <a href="#" onclick="document.getElementById('textid-coll-${doc.documentId}').style.display='none';document.getElementById('textid-txt-${doc.documentId}').className=' ';return false;">here</a> to see it complete.
-                                  </div>
-                                </c:when>
-                                <c:otherwise>
-                                  <div>
-                                    ${entry.value}
-                                  </div>
-                                </c:otherwise>
-                              </c:choose>
-                            </td>
-                        </c:otherwise>
-                      </c:choose>
-                    </tr>
-                </c:forEach>
-            </table>
+            <div id="entries-${doc.documentId}" class="document-entries">
+            </div>
         </div>
     </c:forEach>
     </div>
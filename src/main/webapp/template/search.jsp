@@ -6,6 +6,7 @@
 <script>
 <c:forEach var="t" items="${tags}">
     allTags['${t}'] = 1;  
+    tagCounts['${t}'] = ${tagCounts[t] != null ? tagCounts[t] : 0};
 </c:forEach>
 </script>
 
@@ -58,6 +59,16 @@
             <input type="button" name="Search" value="Search" onclick="search()"/>
         </div>
         
+        <div id="tag-job" class="tag-job-box" style="display:none;">
+            <span id="tag-job-text"></span>
+            <a href="#" onclick="cancelTagJob();return false;">Cancel</a>
+        </div>
+        
+        <div id="export-job" class="tag-job-box" style="display:none;">
+            <span id="export-job-text"></span>
+            <a href="#" onclick="cancelExportJob();return false;">Cancel</a>
+        </div>
+        
         <div class="case-tags-box">
             <div class="case-tags-box-label">Search by tags</div>
             <div class="case-tags-box-body"></div>
@@ -0,0 +1,126 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class CaseFileIndexTest.
+ */
+public class CaseFileIndexTest {
+    private File caseDir;
+    private File nativeDir;
+    
+    @Before
+    public void setUp() throws IOException {
+        caseDir = File.createTempFile("case", "");
+        caseDir.delete();
+        nativeDir = new File(caseDir, "native");
+        nativeDir.mkdirs();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(caseDir);
+    }
+    
+    private File createFile(String name) throws IOException {
+        File file = new File(nativeDir, name);
+        FileUtils.writeStringToFile(file, name);
+        return file;
+    }
+    
+    @Test
+    public void findsFileByNameSuffix() throws IOException {
+        File file = createFile("0001_u1_report.doc");
+        
+        CaseFileIndex index = new CaseFileIndex(caseDir);
+        assertEquals(file, index.find("native", "u1_report.doc"));
+        assertNull(index.find("native", "u2_report.doc"));
+    }
+    
+    @Test
+    public void missFindsFileAddedWithoutDirectoryChange() throws IOException {
+        createFile("u1_report.doc");
+        
+        CaseFileIndex index = new CaseFileIndex(caseDir);
+        index.find("native", "u1_report.doc");
+        
+        //same second on filesystems with a coarse modification time
+        long lastModified = nativeDir.lastModified();
+        File added = createFile("u2_memo.doc");
+        nativeDir.setLastModified(lastModified);
+        
+        assertEquals(added, index.find("native", "u2_memo.doc"));
+        
+        //the added file is kept in the stored index
+        index.store();
+        CaseFileIndex loaded = new CaseFileIndex(caseDir);
+        loaded.load();
+        assertEquals(added, loaded.find("native", "u2_memo.doc"));
+    }
+    
+    @Test
+    public void removedFileIsNotFound() throws IOException {
+        File file = createFile("u1_report.doc");
+        
+        CaseFileIndex index = new CaseFileIndex(caseDir);
+        assertEquals(file, index.find("native", "u1_report.doc"));
+        
+        long lastModified = nativeDir.lastModified();
+        file.delete();
+        nativeDir.setLastModified(lastModified);
+        
+        assertNull(index.find("native", "u1_report.doc"));
+        assertNull(index.find("native", "report.doc"));
+    }
+    
+    @Test
+    public void storedOnlyWhenChanged() throws IOException {
+        File file = createFile("u1_report.doc");
+        File stored = new File(caseDir, ".file-index");
+        
+        CaseFileIndex index = new CaseFileIndex(caseDir);
+        index.find("native", "u1_report.doc");
+        assertFalse(stored.exists());
+        
+        index.store();
+        assertTrue(stored.exists());
+        
+        stored.delete();
+        index.find("native", "u1_report.doc");
+        index.store();
+        assertFalse(stored.exists());
+        
+        CaseFileIndex loaded = new CaseFileIndex(caseDir);
+        loaded.load();
+        file.delete();
+        assertNull(loaded.find("native", "u1_report.doc"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * 
+ * Class CaseFileServiceTest.
+ */
+public class CaseFileServiceTest {
+    
+    @Test
+    public void uniqueEntryNameNumbersDuplicates() {
+        Set<String> names = new HashSet<String>();
+        assertEquals("dir/report.doc", CaseFileService.uniqueEntryName("dir/report.doc", names));
+        assertEquals("dir/report_2.doc", CaseFileService.uniqueEntryName("dir/report.doc", names));
+        assertEquals("dir/report_3.doc", CaseFileService.uniqueEntryName("dir/report.doc", names));
+        assertEquals("other/report.doc", CaseFileService.uniqueEntryName("other/report.doc", names));
+    }
+    
+    @Test
+    public void uniqueEntryNameWithoutExtension() {
+        Set<String> names = new HashSet<String>();
+        CaseFileService.uniqueEntryName("dir.v1/README", names);
+        assertEquals("dir.v1/README_2", CaseFileService.uniqueEntryName("dir.v1/README", names));
+        
+        CaseFileService.uniqueEntryName(".profile", names);
+        assertEquals(".profile_2", CaseFileService.uniqueEntryName(".profile", names));
+    }
+    
+    @Test
+    public void uniqueEntryNameSkipsUsedNumbers() {
+        Set<String> names = new HashSet<String>();
+        CaseFileService.uniqueEntryName("a.txt", names);
+        CaseFileService.uniqueEntryName("a_2.txt", names);
+        assertEquals("a_3.txt", CaseFileService.uniqueEntryName("a.txt", names));
+    }
+    
+    @Test
+    public void writeTaggedLoadFileJoinsByHash() throws IOException {
+        File loadFile = File.createTempFile("loadfile", ".csv");
+        try {
+            FileUtils.writeStringToFile(loadFile, "\"Name\"|\"Hash\"\n\"a.doc\"|\"h1\"\n\"b.doc\"|\"h2\"\n");
+            
+            Map<String, String> tags = new HashMap<String, String>();
+            tags.put("h2", "hot;");
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new CaseFileService().writeTaggedLoadFile(loadFile, tags, out);
+            
+            assertEquals("\"Name\"|\"Hash\"|\"Tags\"\n\"b.doc\"|\"h2\"|\"hot;\"\n", out.toString());
+        } finally {
+            loadFile.delete();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.freeeed.search.web.model.Case;
+import org.freeeed.search.web.session.SolrSessionObject;
+import org.freeeed.search.web.solr.FieldProfile;
+import org.freeeed.search.web.solr.SearchQuery;
+import org.freeeed.search.web.solr.SolrDocumentBatchIterator;
+import org.freeeed.search.web.solr.SolrSearchService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class ExportJobServiceTest.
+ */
+public class ExportJobServiceTest {
+    private File dir;
+    private ExportJobService service;
+    private SolrSessionObject session;
+    private final CountDownLatch release = new CountDownLatch(1);
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("exports", "");
+        dir.delete();
+        
+        service = new ExportJobService();
+        service.setExportDir(dir.getPath());
+        service.setMaxThreads(1);
+        service.setMaxDiskBytes(1024);
+        service.setSearchService(new SolrSearchService() {
+            @Override
+            public SolrDocumentBatchIterator iterate(String solrCore, SearchQuery query, FieldProfile profile,
+                    int batchSize) {
+                //keeps the only export thread busy
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("No Solr in tests");
+            }
+        });
+        service.init();
+        
+        Case c = new Case();
+        c.setName("case");
+        c.setSolrSourceCore("core");
+        session = new SolrSessionObject();
+        session.setSelectedCase(c);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        service.destroy();
+        FileUtils.deleteDirectory(dir);
+    }
+    
+    @Test
+    public void cancelledQueuedJobFinishesRightAway() {
+        ExportJob running = service.submit(session, ExportJob.Type.NATIVE, null);
+        ExportJob queued = service.submit(session, ExportJob.Type.NATIVE, null);
+        assertNotNull(running);
+        assertNotNull(queued);
+        
+        service.cancel(session, queued.getId());
+        assertEquals(ExportJob.Status.CANCELLED, queued.getStatus());
+    }
+    
+    @Test
+    public void jobRejectedOverQuota() throws IOException {
+        FileUtils.writeByteArrayToFile(new File(dir, "other.zip.part"), new byte[2048]);
+        
+        assertNull(service.submit(session, ExportJob.Type.NATIVE, null));
+    }
+    
+    @Test
+    public void failedStreamSendsNothing() throws IOException {
+        release.countDown();
+        final boolean[] opened = new boolean[1];
+        
+        //more than maxStreams, the permits are given back on failure
+        for (int i = 0; i < 3; i++) {
+            try {
+                service.stream(session, ExportJob.Type.NATIVE, null, new ExportJobService.Output() {
+                    @Override
+                    public OutputStream open(ExportJob job) {
+                        opened[0] = true;
+                        return null;
+                    }
+                });
+                fail();
+            } catch (IllegalStateException e) {
+                //expected, no Solr
+            }
+        }
+        
+        assertFalse(opened[0]);
+    }
+}
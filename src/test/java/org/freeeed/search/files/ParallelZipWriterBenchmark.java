@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class ParallelZipWriterBenchmark.
+ * 
+ * Compares zipping the same files with ZipUtil, one entry after another,
+ * and with ParallelZipWriter on pools of increasing size. The files are
+ * text with some random words, so they compress as documents do.
+ * The default test run doesn't include it, run it with
+ * mvn test -Dtest=ParallelZipWriterBenchmark
+ */
+public class ParallelZipWriterBenchmark {
+    private static final int FILES = 200;
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final int MEMORY_LIMIT = 4 * 1024 * 1024;
+    
+    private File dir;
+    private List<File> files;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("zipbench", "");
+        dir.delete();
+        dir.mkdirs();
+        
+        Random random = new Random(1);
+        files = new ArrayList<File>();
+        for (int i = 0; i < FILES; i++) {
+            StringBuilder text = new StringBuilder(FILE_SIZE);
+            while (text.length() < FILE_SIZE) {
+                text.append("document ").append(i).append(" word ").append(random.nextInt(100000)).append('\n');
+            }
+            
+            File file = new File(dir, "file" + i + ".txt");
+            FileUtils.writeStringToFile(file, text.toString());
+            files.add(file);
+        }
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        if (dir != null) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test
+    public void compareZipping() throws IOException {
+        File zip = new File(dir, "out.zip");
+        
+        //warm up both writers
+        ZipUtil.createZipFile(zip.getPath(), files);
+        writeParallel(zip, 1);
+        
+        long start = System.nanoTime();
+        ZipUtil.createZipFile(zip.getPath(), files);
+        long sequential = System.nanoTime() - start;
+        
+        System.out.println("writer              time (ms)  size (bytes)");
+        System.out.println(String.format("%-18s  %9d  %12d", "ZipUtil", sequential / 1000000, zip.length()));
+        
+        for (int threads : THREADS) {
+            start = System.nanoTime();
+            writeParallel(zip, threads);
+            long parallel = System.nanoTime() - start;
+            
+            System.out.println(String.format("%-18s  %9d  %12d", "parallel, " + threads + " thr",
+                    parallel / 1000000, zip.length()));
+        }
+    }
+    
+    private void writeParallel(File zip, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            ParallelZipWriter writer = new ParallelZipWriter(out, executor, threads * 2, MEMORY_LIMIT,
+                    new File(dir, "tmp"));
+            try {
+                for (File file : files) {
+                    writer.addFile(file, file.getName());
+                }
+                writer.finish();
+            } finally {
+                writer.abort();
+            }
+        } finally {
+            out.close();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class ParallelZipWriterTest.
+ */
+public class ParallelZipWriterTest {
+    private File dir;
+    private File tmpDir;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("zip", "");
+        dir.delete();
+        dir.mkdirs();
+        tmpDir = new File(dir, "tmp");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+    
+    private File createTextFile(String name, int lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append(" of ").append(name).append('\n');
+        }
+        
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, text.toString());
+        return file;
+    }
+    
+    private File createRandomFile(String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        
+        File file = new File(dir, name);
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+    
+    private File writeZip(Map<String, File> entries, int memoryLimit) throws Exception {
+        File zip = new File(dir, "out.zip");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            ParallelZipWriter writer = new ParallelZipWriter(out, executor, 8, memoryLimit, tmpDir);
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                writer.addFile(entry.getValue(), entry.getKey());
+            }
+            writer.finish();
+        } finally {
+            out.close();
+            executor.shutdown();
+        }
+        return zip;
+    }
+    
+    @Test
+    public void writesEntriesReadableByZipFile() throws Exception {
+        Map<String, File> entries = new HashMap<String, File>();
+        entries.put("small.txt", createTextFile("small.txt", 10));
+        entries.put("large.txt", createTextFile("large.txt", 50000));
+        entries.put("photo.jpg", createRandomFile("photo.jpg", 20000));
+        entries.put("random.bin", createRandomFile("random.bin", 20000));
+        entries.put("empty.txt", createTextFile("empty.txt", 0));
+        entries.put("docs/\u0434\u043e\u043a\u0443\u043c\u0435\u043d\u0442.txt", createTextFile("doc.txt", 100));
+        
+        File zip = writeZip(entries, 1024);
+        
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(entries.size(), zipFile.size());
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                assertNotNull(entry.getKey(), zipEntry);
+                
+                InputStream in = zipFile.getInputStream(zipEntry);
+                try {
+                    assertArrayEquals(FileUtils.readFileToByteArray(entry.getValue()), IOUtils.toByteArray(in));
+                } finally {
+                    in.close();
+                }
+            }
+            
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("large.txt").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("photo.jpg").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("random.bin").getMethod());
+        } finally {
+            zipFile.close();
+        }
+        
+        String[] left = tmpDir.list();
+        assertEquals(0, left != null ? left.length : 0);
+    }
+    
+    @Test
+    public void writesEntriesInOrderReadableByZipInputStream() throws Exception {
+        File file = createTextFile("file.txt", 1000);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ParallelZipWriter writer = new ParallelZipWriter(out, executor, 8, 1024, tmpDir);
+        for (int i = 0; i < 100; i++) {
+            writer.addFile(file, "entry" + i + ".txt");
+        }
+        writer.finish();
+        executor.shutdown();
+        
+        byte[] expected = FileUtils.readFileToByteArray(file);
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        int count = 0;
+        for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+            assertEquals("entry" + count + ".txt", entry.getName());
+            assertArrayEquals(expected, IOUtils.toByteArray(in));
+            count++;
+        }
+        in.close();
+        
+        assertEquals(100, count);
+    }
+    
+    @Test
+    public void manyEntriesUseZip64EndRecords() throws Exception {
+        int entries = 70000;
+        File file = createTextFile("file.txt", 1);
+        
+        File zip = new File(dir, "out.zip");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            ParallelZipWriter writer = new ParallelZipWriter(out, executor, 64, 1024, tmpDir);
+            for (int i = 0; i < entries; i++) {
+                writer.addFile(file, "entry" + i + ".txt");
+            }
+            writer.finish();
+        } finally {
+            out.close();
+            executor.shutdown();
+        }
+        
+        //end of central directory, after the zip64 record and its locator
+        byte[] data = FileUtils.readFileToByteArray(zip);
+        assertEquals(0x06054b50, readInt(data, data.length - 22));
+        assertEquals(0xFFFF, readShort(data, data.length - 22 + 10));
+        assertEquals(0x07064b50, readInt(data, data.length - 22 - 20));
+        assertEquals(0x06064b50, readInt(data, data.length - 22 - 20 - 56));
+        
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(entries, zipFile.size());
+            assertNotNull(zipFile.getEntry("entry" + (entries - 1) + ".txt"));
+            assertNull(zipFile.getEntry("entry" + entries + ".txt"));
+        } finally {
+            zipFile.close();
+        }
+        
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(data));
+        int count = 0;
+        while (in.getNextEntry() != null) {
+            count++;
+        }
+        in.close();
+        
+        assertEquals(entries, count);
+    }
+    
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+    
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+    }
+    
+    @Test
+    public void abortReleasesSpilledEntries() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            createTextFile("file" + i + ".txt", 50000);
+        }
+        
+        for (int run = 0; run < 5; run++) {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            ParallelZipWriter writer = new ParallelZipWriter(new ByteArrayOutputStream(), executor, 16, 1024,
+                    tmpDir);
+            for (int i = 0; i < 8; i++) {
+                writer.addFile(new File(dir, "file" + i + ".txt"), "file" + i + ".txt");
+            }
+            writer.abort();
+            
+            //entries still being compressed must not leave their buffers behind
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            
+            String[] left = tmpDir.list();
+            assertEquals(0, left != null ? left.length : 0);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import org.freeeed.search.files.ExportJob;
+import org.freeeed.search.web.solr.SearchQuery;
+import org.freeeed.search.web.solr.TagJob;
+import org.junit.Test;
+
+/**
+ * 
+ * Class JobJsonTest.
+ */
+public class JobJsonTest {
+    
+    @Test
+    public void tagAndExportJobsHaveTheSameShape() {
+        TagJob tagJob = new TagJob("core", null, new SearchQuery(SearchQuery.MATCH_ALL), "hot", false);
+        ExportJob exportJob = new ExportJob(ExportJob.Type.NATIVE, "core", "case",
+                new SearchQuery(SearchQuery.MATCH_ALL), null);
+        
+        String suffix = ",\"status\":\"QUEUED\",\"processed\":0,\"total\":-1,\"rate\":0,\"eta\":-1}";
+        assertEquals("{\"job\":\"" + tagJob.getId() + "\"" + suffix, JobJson.toJson(tagJob));
+        assertEquals("{\"job\":\"" + exportJob.getId() + "\"" + suffix, JobJson.toJson(exportJob));
+    }
+    
+    @Test
+    public void stringsAreEscaped() {
+        StringBuilder result = new StringBuilder();
+        JobJson.appendString(result, "a\"b\\c\nd\u0001");
+        
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", result.toString());
+    }
+}
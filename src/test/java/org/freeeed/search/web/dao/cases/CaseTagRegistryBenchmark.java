@@ -0,0 +1,98 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.dao.cases;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.freeeed.search.web.model.Case;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class CaseTagRegistryBenchmark.
+ * 
+ * Compares storing the cases for every tagged document with storing
+ * them once per tag operation, only when the tag is new to the case.
+ * The default test run doesn't include it, run it with
+ * mvn test -Dtest=CaseTagRegistryBenchmark
+ */
+public class CaseTagRegistryBenchmark {
+    private static final int CASES = 50;
+    private static final int TAGS_PER_CASE = 20;
+    private static final int[] BATCH_SIZES = {100, 1000, 10000};
+    
+    private File dir;
+    private FSCaseDao dao;
+    private Case tagged;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cases", "");
+        dir.delete();
+        dir.mkdirs();
+        
+        dao = new FSCaseDao();
+        dao.setCasesFile(new File(dir, "c.dat").getPath());
+        dao.init();
+        
+        for (int i = 0; i < CASES; i++) {
+            Case c = new Case();
+            c.setName("case" + i);
+            for (int j = 0; j < TAGS_PER_CASE; j++) {
+                c.addTag("tag" + j);
+            }
+            dao.saveCase(c);
+            tagged = c;
+        }
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        if (dir != null) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test
+    public void compareStoring() {
+        System.out.println("documents  per document (ms)  per operation (ms)");
+        
+        for (int size : BATCH_SIZES) {
+            String tag = "perdoc" + size;
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                tagged.addTag(tag);
+                dao.saveCase(tagged);
+            }
+            long perDocument = System.nanoTime() - start;
+            
+            tag = "perop" + size;
+            start = System.nanoTime();
+            if (tagged.addTag(tag)) {
+                dao.saveCase(tagged);
+            }
+            long perOperation = System.nanoTime() - start;
+            
+            System.out.println(String.format("%9d  %17d  %18d", size, perDocument / 1000000,
+                    perOperation / 1000000));
+        }
+    }
+}
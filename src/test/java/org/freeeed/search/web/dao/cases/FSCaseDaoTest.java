@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.dao.cases;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.freeeed.search.web.model.Case;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class FSCaseDaoTest.
+ */
+public class FSCaseDaoTest {
+    private File dir;
+    private String casesFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cases", "");
+        dir.delete();
+        dir.mkdirs();
+        casesFile = new File(dir, "c.dat").getPath();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+    
+    private FSCaseDao newDao() {
+        FSCaseDao dao = new FSCaseDao();
+        dao.setCasesFile(casesFile);
+        dao.init();
+        return dao;
+    }
+    
+    private Case newCase(String name) {
+        Case c = new Case();
+        c.setName(name);
+        return c;
+    }
+    
+    @Test
+    public void casesAreStoredAndLoaded() {
+        Case c = newCase("first");
+        c.addTag("privileged");
+        newDao().saveCase(c);
+        
+        Case loaded = newDao().findCase(c.getId());
+        assertNotNull(loaded);
+        assertEquals("first", loaded.getName());
+        assertEquals(1, loaded.getTags().size());
+        assertFalse(new File(casesFile + ".tmp").exists());
+    }
+    
+    @Test
+    public void failedWriteKeepsStoredCases() throws IOException {
+        FSCaseDao dao = newDao();
+        Case first = newCase("first");
+        dao.saveCase(first);
+        
+        //the temporary file can't be written while a directory is in its place
+        File tmp = new File(casesFile + ".tmp");
+        assertTrue(tmp.mkdir());
+        
+        Case second = newCase("second");
+        dao.saveCase(second);
+        
+        FSCaseDao reloaded = newDao();
+        assertNotNull(reloaded.findCase(first.getId()));
+        assertNull(reloaded.findCase(second.getId()));
+        
+        //the next successful write stores everything
+        FileUtils.deleteDirectory(tmp);
+        dao.saveCase(first);
+        
+        reloaded = newDao();
+        assertEquals(2, reloaded.listCases().size());
+    }
+}
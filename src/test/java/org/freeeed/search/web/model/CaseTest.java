@@ -0,0 +1,55 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Class CaseTest.
+ */
+public class CaseTest {
+    
+    @Test
+    public void addTagReportsNewTagsOnly() {
+        Case c = new Case();
+        
+        assertTrue(c.addTag("privileged"));
+        assertFalse(c.addTag("privileged"));
+        assertTrue(c.addTag("responsive"));
+        
+        assertEquals(2, c.getTags().size());
+    }
+    
+    @Test
+    public void removeTagReportsRemovedTagsOnly() {
+        Case c = new Case();
+        c.addTag("privileged");
+        
+        assertFalse(c.removeTag("responsive"));
+        assertTrue(c.removeTag("privileged"));
+        assertFalse(c.removeTag("privileged"));
+        
+        assertEquals(Collections.<String>emptyList(), c.getTags());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.QueryResponseWriterUtil;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.servlet.SolrRequestParsers;
+import org.apache.solr.util.RefCounted;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 
+ * Class EmbeddedSolr.
+ * 
+ * A single Solr core running in the test JVM, with the schema of a case
+ * core, see src/test/resources/solr. The core is served over HTTP on a
+ * free local port, so the services talk to it as to a real Solr server.
+ */
+public class EmbeddedSolr {
+    public static final String CORE = "freeeed";
+    
+    private final File solrHome;
+    private final CoreContainer container;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    
+    public EmbeddedSolr() throws IOException {
+        solrHome = File.createTempFile("solr", "");
+        solrHome.delete();
+        
+        File coreDir = new File(solrHome, CORE);
+        copyResource("solr/solr.xml", new File(solrHome, "solr.xml"));
+        copyResource("solr/conf/solrconfig.xml", new File(coreDir, "conf/solrconfig.xml"));
+        copyResource("solr/conf/schema.xml", new File(coreDir, "conf/schema.xml"));
+        FileUtils.writeStringToFile(new File(coreDir, "core.properties"), "name=" + CORE);
+        
+        container = CoreContainer.createAndLoad(solrHome.toPath());
+        
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/solr/" + CORE + "/", new SolrHandler());
+        //a streamed update reads the batches from Solr while it is being sent
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    private void copyResource(String name, File target) throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+        try {
+            target.getParentFile().mkdirs();
+            FileUtils.writeByteArrayToFile(target, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+    
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdown();
+        container.shutdown();
+        FileUtils.deleteDirectory(solrHome);
+    }
+    
+    /**
+     * @return the Solr endpoint, without the /solr path.
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    
+    /**
+     * Send the given JSON update and commit it.
+     * 
+     * @param json
+     */
+    public void update(String json) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("commit", "true");
+        
+        SolrCore core = container.getCore(CORE);
+        SolrQueryRequest req = createRequest(core, "/update", params,
+                new ContentStreamBase.StringStream(json, "application/json"));
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        try {
+            execute(core, "/update", req, rsp);
+            if (rsp.getException() != null) {
+                throw new IllegalStateException(rsp.getException());
+            }
+        } finally {
+            SolrRequestInfo.clearRequestInfo();
+            req.close();
+            core.close();
+        }
+    }
+    
+    /**
+     * @param tag
+     * @return the number of committed documents having the tag.
+     */
+    public int countTagged(String tag) {
+        return count(new TermQuery(new Term("tags-search-field", tag)));
+    }
+    
+    /**
+     * @return the number of committed documents.
+     */
+    public int countAll() {
+        return count(new MatchAllDocsQuery());
+    }
+    
+    private int count(Query query) {
+        SolrCore core = container.getCore(CORE);
+        try {
+            RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+            try {
+                return searcher.get().count(query);
+            } finally {
+                searcher.decref();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            core.close();
+        }
+    }
+    
+    private SolrQueryRequest createRequest(SolrCore core, String path, SolrParams params, ContentStream body) {
+        LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+        req.getContext().put("path", path);
+        if (body != null) {
+            req.setContentStreams(Collections.singletonList(body));
+        }
+        
+        return req;
+    }
+    
+    /**
+     * Run the request, the response is written within the same request info.
+     */
+    private void execute(SolrCore core, String path, SolrQueryRequest req, SolrQueryResponse rsp) {
+        SolrRequestHandler handler = RequestHandlerBase.getRequestHandler(path, core.getRequestHandlers());
+        if (handler == null) {
+            rsp.setException(new SolrException(SolrException.ErrorCode.NOT_FOUND, "No handler: " + path));
+            return;
+        }
+        
+        core.execute(handler, req, rsp);
+    }
+    
+    /**
+     * Runs the request on the core and writes the response with the
+     * response writer of the wt parameter. Request bodies are read as
+     * Solr reads them, while they arrive.
+     */
+    private class SolrHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath().substring(("/solr/" + CORE).length());
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            
+            SolrParams params = SolrRequestParsers.parseQueryString(exchange.getRequestURI().getRawQuery());
+            
+            ContentStream body = null;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                body = new RequestBody(exchange);
+            }
+            
+            SolrCore core = container.getCore(CORE);
+            SolrQueryRequest req = createRequest(core, path, params, body);
+            SolrQueryResponse rsp = new SolrQueryResponse();
+            SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+            try {
+                execute(core, path, req, rsp);
+                
+                int status = 200;
+                if (rsp.getException() != null) {
+                    status = rsp.getException() instanceof SolrException ?
+                            ((SolrException) rsp.getException()).code() : 500;
+                }
+                
+                QueryResponseWriter writer = core.getQueryResponseWriter(req);
+                String contentType = writer.getContentType(req, rsp);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(status, 0);
+                
+                OutputStream out = exchange.getResponseBody();
+                QueryResponseWriterUtil.writeQueryResponse(out, writer, req, rsp, contentType);
+                out.close();
+            } finally {
+                SolrRequestInfo.clearRequestInfo();
+                req.close();
+                core.close();
+                exchange.close();
+            }
+        }
+    }
+    
+    private static class RequestBody extends ContentStreamBase {
+        private final HttpExchange exchange;
+        
+        RequestBody(HttpExchange exchange) {
+            this.exchange = exchange;
+            setContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+        }
+        
+        @Override
+        public InputStream getStream() {
+            return exchange.getRequestBody();
+        }
+    }
+}
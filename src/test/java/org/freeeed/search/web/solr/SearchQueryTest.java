@@ -0,0 +1,47 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Class SearchQueryTest.
+ */
+public class SearchQueryTest {
+    
+    @Test
+    public void fieldValueQuotesQuerySyntax() {
+        assertEquals("tags-search-field:\"hot docs\"", SearchQuery.fieldValue("tags-search-field", "hot docs"));
+        assertEquals("tags-search-field:\"a:b -c\"", SearchQuery.fieldValue("tags-search-field", "a:b -c"));
+    }
+    
+    @Test
+    public void fieldValueEscapesQuotesAndBackslashes() {
+        assertEquals("id:\"say \\\"hi\\\" c:\\\\x\"", SearchQuery.fieldValue("id", "say \"hi\" c:\\x"));
+    }
+    
+    @Test
+    public void tagQueryFiltersByQuotedTag() {
+        SearchQuery query = SolrTagService.buildTagQuery("to review");
+        
+        assertEquals(SearchQuery.MATCH_ALL, query.getQuery());
+        assertEquals("tags-search-field:\"to review\"", query.getFilters().get(0));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.freeeed.search.web.configuration.Configuration;
+import org.freeeed.search.web.dao.cases.CaseDao;
+import org.freeeed.search.web.model.Case;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 
+ * Class SolrTagServiceTest.
+ * 
+ * Bulk tag operations against an embedded Solr core, with the
+ * pipelined batch requests and with the streamed single request.
+ */
+public class SolrTagServiceTest {
+    private static final int DOCUMENTS = 95;
+    private static final int BATCH_SIZE = 10;
+    
+    private static EmbeddedSolr solr;
+    
+    private SolrHttpClient solrHttpClient;
+    private TagUsageService tagUsageService;
+    private SolrSearchService searchService;
+    private SolrTagService tagService;
+    private final List<Case> saved = new ArrayList<Case>();
+    
+    @BeforeClass
+    public static void startSolr() throws IOException {
+        solr = new EmbeddedSolr();
+    }
+    
+    @AfterClass
+    public static void stopSolr() throws IOException {
+        solr.close();
+    }
+    
+    @Before
+    public void setUp() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < DOCUMENTS; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"doc").append(i).append("\",\"custodian\":\"")
+                    .append(i % 2 == 0 ? "even" : "odd").append("\",\"subject\":\"report ")
+                    .append(i).append("\",\"tags-search-field\":[\"old\"]}");
+        }
+        json.append(']');
+        
+        solr.update("{\"delete\":{\"query\":\"*:*\"}}");
+        solr.update(json.toString());
+        
+        Configuration configuration = new Configuration() {
+            @Override
+            public String getSolrEndpoint() {
+                return solr.getEndpoint();
+            }
+            
+            @Override
+            public CommitPolicy getCommitPolicy() {
+                return CommitPolicy.HARD;
+            }
+        };
+        
+        solrHttpClient = new SolrHttpClient();
+        solrHttpClient.init();
+        
+        SolrSchemaService schemaService = new SolrSchemaService();
+        schemaService.setConfiguration(configuration);
+        schemaService.setSolrHttpClient(solrHttpClient);
+        
+        SolrResultCache resultCache = new SolrResultCache();
+        
+        searchService = new SolrSearchService();
+        searchService.setConfiguration(configuration);
+        searchService.setSolrDocumentParser(new DocumentParser());
+        searchService.setSolrHttpClient(solrHttpClient);
+        searchService.setResultCache(resultCache);
+        searchService.setSchemaService(schemaService);
+        
+        CaseDao caseDao = new CaseDao() {
+            @Override
+            public List<Case> listCases() {
+                return null;
+            }
+            
+            @Override
+            public Case findCase(long id) {
+                return null;
+            }
+            
+            @Override
+            public synchronized void saveCase(Case c) {
+                saved.add(c);
+            }
+            
+            @Override
+            public void deleteCase(long id) {
+            }
+        };
+        
+        tagUsageService = new TagUsageService();
+        tagUsageService.setConfiguration(configuration);
+        tagUsageService.setSolrHttpClient(solrHttpClient);
+        tagUsageService.setCaseDao(caseDao);
+        tagUsageService.init();
+        
+        tagService = new SolrTagService();
+        tagService.setConfiguration(configuration);
+        tagService.setSearchService(searchService);
+        tagService.setCaseDao(caseDao);
+        tagService.setSolrHttpClient(solrHttpClient);
+        tagService.setResultCache(resultCache);
+        tagService.setTagUsageService(tagUsageService);
+        tagService.setBulkBatchSize(BATCH_SIZE);
+        tagService.init();
+    }
+    
+    @After
+    public void tearDown() {
+        tagService.destroy();
+        tagUsageService.destroy();
+        solrHttpClient.destroy();
+    }
+    
+    private Case createCase() {
+        Case c = new Case();
+        c.setName("case");
+        c.setSolrSourceCore(EmbeddedSolr.CORE);
+        c.addTag("old");
+        return c;
+    }
+    
+    private TagJob runJob(Case c, String tag, boolean remove) {
+        SearchQuery query = new SearchQuery(SearchQuery.MATCH_ALL,
+                Collections.singletonList(SearchQuery.fieldValue("custodian", "even")));
+        TagJob job = new TagJob(EmbeddedSolr.CORE, c, query, tag, remove);
+        
+        assertEquals(SolrTagService.Result.SUCCESS, tagService.runJob(job));
+        return job;
+    }
+    
+    private void checkTagged(String tag, int expected) {
+        assertEquals(expected, solr.countTagged(tag));
+        
+        //atomic updates keep the other fields and tags
+        assertEquals(DOCUMENTS, solr.countTagged("old"));
+        assertEquals(DOCUMENTS, solr.countAll());
+    }
+    
+    @Test
+    public void tagAllPipelined() {
+        Case c = createCase();
+        TagJob job = runJob(c, "hot", false);
+        
+        checkTagged("hot", 48);
+        assertEquals(48, job.getProcessed());
+        assertTrue(c.getTags().contains("hot"));
+    }
+    
+    @Test
+    public void tagAllStreamed() {
+        tagService.setStreamedUpdates(true);
+        
+        Case c = createCase();
+        TagJob job = runJob(c, "hot", false);
+        
+        checkTagged("hot", 48);
+        assertEquals(48, job.getProcessed());
+        assertTrue(c.getTags().contains("hot"));
+    }
+    
+    @Test
+    public void tagAllStreamedWithCursorPaging() {
+        tagService.setStreamedUpdates(true);
+        searchService.setUseExportHandler(false);
+        
+        TagJob job = runJob(createCase(), "hot \"quoted\"", false);
+        
+        checkTagged("hot \"quoted\"", 48);
+        assertEquals(48, job.getProcessed());
+    }
+    
+    @Test
+    public void removeFromAllStreamed() {
+        tagService.setStreamedUpdates(true);
+        
+        Case c = createCase();
+        runJob(c, "hot", false);
+        runJob(c, "hot", true);
+        
+        checkTagged("hot", 0);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.freeeed.search.web.dao.cases.CaseDao;
+import org.freeeed.search.web.model.Case;
+import org.freeeed.search.web.solr.SolrTagService.Result;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class TagJobServiceTest.
+ */
+public class TagJobServiceTest {
+    private File dir;
+    private TagJournal journal;
+    private TagJobService service;
+    private Case c;
+    private final CountDownLatch release = new CountDownLatch(1);
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        
+        journal = new TagJournal();
+        journal.setJournalDir(dir.getPath());
+        
+        c = new Case();
+        c.setId(1L);
+        c.setName("case");
+        c.setSolrSourceCore("core");
+        
+        service = new TagJobService();
+        service.setTagJournal(journal);
+        service.setMaxThreads(1);
+        service.setQueueSize(1);
+        service.setCaseDao(new CaseDao() {
+            @Override
+            public List<Case> listCases() {
+                return null;
+            }
+            
+            @Override
+            public Case findCase(long id) {
+                return id == 1 ? c : null;
+            }
+            
+            @Override
+            public void saveCase(Case c) {
+            }
+            
+            @Override
+            public void deleteCase(long id) {
+            }
+        });
+        service.setSolrTagService(new SolrTagService() {
+            @Override
+            public Result runJob(TagJob job) {
+                //keeps the only thread busy
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Result.ERROR;
+            }
+        });
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        service.destroy();
+        FileUtils.deleteDirectory(dir);
+    }
+    
+    private TagJob createJob(String tag) {
+        return new TagJob("core", c, new SearchQuery(SearchQuery.MATCH_ALL), tag, false);
+    }
+    
+    private Map<String, Integer> readAttempts() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (TagJournal.Entry entry : journal.readEntries()) {
+            result.put(entry.getTag(), entry.getAttempts());
+        }
+        return result;
+    }
+    
+    @Test
+    public void jobsNotResumedKeepTheirEntries() throws IOException {
+        List<TagJob> jobs = new ArrayList<TagJob>();
+        for (int i = 0; i < 3; i++) {
+            TagJob job = createJob("tag" + i);
+            journal.write(job, 0);
+            jobs.add(job);
+        }
+        
+        //one job runs and one is queued, the third one doesn't fit
+        service.init();
+        
+        List<TagJournal.Entry> entries = journal.readEntries();
+        assertEquals(3, entries.size());
+        
+        int resumed = 0;
+        for (TagJournal.Entry entry : entries) {
+            boolean old = false;
+            for (TagJob job : jobs) {
+                old |= job.getId().equals(entry.getId());
+            }
+            
+            if (old) {
+                assertEquals(0, entry.getAttempts());
+            } else {
+                assertEquals(1, entry.getAttempts());
+                resumed++;
+            }
+        }
+        assertEquals(2, resumed);
+    }
+    
+    @Test
+    public void exhaustedJobIsDropped() throws IOException {
+        journal.write(createJob("tag"), 3);
+        
+        service.init();
+        
+        assertTrue(readAttempts().isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.freeeed.search.web.model.solr.SolrDocument;
+import org.junit.Test;
+
+/**
+ * 
+ * Class TagUpdateEntityTest.
+ */
+public class TagUpdateEntityTest {
+    
+    private static SolrDocument createDocument(String id) {
+        SolrDocument doc = new SolrDocument();
+        doc.setDocumentId(id);
+        return doc;
+    }
+    
+    private static String read(InputStream in) throws IOException {
+        try {
+            return new String(IOUtils.toByteArray(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static String write(TagUpdateEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+    
+    private static SolrDocumentBatchIterator iterate(final int batches, final int batchSize) {
+        return new SolrDocumentBatchIterator("core", batchSize) {
+            private int fetched;
+            
+            @Override
+            protected List<SolrDocument> fetchNext() {
+                setTotalSize(batches * batchSize);
+                
+                List<SolrDocument> batch = new ArrayList<SolrDocument>();
+                if (fetched < batches) {
+                    for (int i = 0; i < batchSize; i++) {
+                        batch.add(createDocument("doc" + (fetched * batchSize + i)));
+                    }
+                    fetched++;
+                }
+                return batch;
+            }
+        };
+    }
+    
+    @Test
+    public void singleBatchContentIsRepeatable() throws IOException {
+        TagUpdateEntity entity = new TagUpdateEntity(Arrays.asList(createDocument("a"), createDocument("b\"")),
+                "hot", false, true);
+        String expected = "[{\"id\":\"a\",\"tags-search-field\":{\"add-distinct\":\"hot\"}},"
+                + "{\"id\":\"b\\\"\",\"tags-search-field\":{\"add-distinct\":\"hot\"}}]";
+        
+        assertTrue(entity.isRepeatable());
+        assertEquals(expected, read(entity.getContent()));
+        assertEquals(expected, read(entity.getContent()));
+        assertEquals(expected, write(entity));
+    }
+    
+    @Test
+    public void streamedContentReadsAllBatches() throws IOException {
+        TagJob job = new TagJob("core", null, new SearchQuery(SearchQuery.MATCH_ALL), "hot", true);
+        TagUpdateEntity entity = new TagUpdateEntity(iterate(3, 2), job, "hot", true);
+        
+        assertTrue(entity.isStreaming());
+        assertFalse(entity.isRepeatable());
+        
+        String content = read(entity.getContent());
+        assertEquals(write(new TagUpdateEntity(iterate(3, 2), null, "hot", true)), content);
+        assertTrue(content.startsWith("[{\"id\":\"doc0\",\"tags-search-field\":{\"remove\":\"hot\"}},"));
+        assertTrue(content.endsWith("{\"id\":\"doc5\",\"tags-search-field\":{\"remove\":\"hot\"}}]"));
+        assertEquals(6, job.getProcessed());
+        assertEquals(6, job.getTotal());
+    }
+    
+    @Test
+    public void emptyIterationIsEmptyList() throws IOException {
+        assertEquals("[]", read(new TagUpdateEntity(iterate(0, 2), null, "hot", false).getContent()));
+    }
+}
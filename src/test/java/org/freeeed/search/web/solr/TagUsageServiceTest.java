@@ -0,0 +1,148 @@
+/*
+ *
+ * Copyright SHMsoft, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.freeeed.search.web.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.freeeed.search.web.configuration.Configuration;
+import org.freeeed.search.web.dao.cases.CaseDao;
+import org.freeeed.search.web.model.Case;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * Class TagUsageServiceTest.
+ */
+public class TagUsageServiceTest {
+    private TagUsageService service;
+    private final List<Case> saved = new ArrayList<Case>();
+    private volatile String facet = "[]";
+    private volatile int requests;
+    
+    @Before
+    public void setUp() {
+        service = new TagUsageService();
+        service.setConfiguration(new Configuration() {
+            @Override
+            public String getSolrEndpoint() {
+                return "http://localhost:8983";
+            }
+        });
+        service.setSolrHttpClient(new SolrHttpClient() {
+            @Override
+            public <T> T execute(String core, HttpUriRequest request, ResponseHandler<? extends T> handler)
+                    throws IOException {
+                requests++;
+                BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setEntity(new StringEntity("{\"facet_counts\":{\"facet_fields\":{\"tags-search-field\":"
+                        + facet + "}}}", "UTF-8"));
+                return handler.handleResponse(response);
+            }
+        });
+        service.setCaseDao(new CaseDao() {
+            @Override
+            public List<Case> listCases() {
+                return null;
+            }
+            
+            @Override
+            public Case findCase(long id) {
+                return null;
+            }
+            
+            @Override
+            public synchronized void saveCase(Case c) {
+                saved.add(c);
+            }
+            
+            @Override
+            public void deleteCase(long id) {
+            }
+        });
+        service.init();
+    }
+    
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+    
+    private Case createCase(String tag) {
+        Case c = new Case();
+        c.setName("case");
+        c.setSolrSourceCore("core");
+        c.addTag(tag);
+        return c;
+    }
+    
+    private void awaitRequests(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && requests < count; i++) {
+            Thread.sleep(20);
+        }
+        //let the check finish after the counts are read
+        Thread.sleep(100);
+    }
+    
+    @Test
+    public void unusedTagDroppedAfterRemoval() throws InterruptedException {
+        Case c = createCase("hot");
+        facet = "[\"cold\",\"3\"]";
+        
+        service.removed("core", c, "hot", 0);
+        awaitRequests(1);
+        
+        assertFalse(c.getTags().contains("hot"));
+        assertEquals(1, saved.size());
+    }
+    
+    @Test
+    public void usedTagKeptAfterRemoval() throws InterruptedException {
+        Case c = createCase("hot");
+        facet = "[\"hot\",\"2\"]";
+        
+        service.removed("core", c, "hot", 0);
+        awaitRequests(1);
+        
+        assertTrue(c.getTags().contains("hot"));
+        assertEquals(0, saved.size());
+    }
+    
+    @Test
+    public void tagAddedAgainIsKept() throws InterruptedException {
+        Case c = createCase("hot");
+        
+        service.removed("core", c, "hot", 500);
+        service.added("core", "hot");
+        Thread.sleep(2000);
+        
+        assertTrue(c.getTags().contains("hot"));
+        assertEquals(0, requests);
+    }
+}